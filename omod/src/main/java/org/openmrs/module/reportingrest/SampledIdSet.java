@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.openmrs.module.reporting.query.IdSet;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An IdSet that only holds some of its members, along with the (possibly estimated) size of the whole set. Used for
+ * previews, where evaluating the whole set would take too long. Combining it with other sets combines the sampled
+ * members only.
+ */
+public class SampledIdSet implements IdSet {
+
+    @JsonProperty
+    private Set<Integer> memberIds;
+
+    @JsonProperty
+    private int size;
+
+    @JsonProperty
+    private boolean estimated;
+
+    public SampledIdSet() {
+        memberIds = new LinkedHashSet<Integer>();
+    }
+
+    /**
+     * @param memberIds some of the members
+     * @param size the size of the whole set
+     * @param estimated whether size is an estimate
+     */
+    public SampledIdSet(Set<Integer> memberIds, int size, boolean estimated) {
+        this.memberIds = memberIds;
+        this.size = size;
+        this.estimated = estimated;
+    }
+
+    /**
+     * @return the sampled members only
+     */
+    @Override
+    public Set<Integer> getMemberIds() {
+        return memberIds;
+    }
+
+    /**
+     * @param id
+     * @return whether id is one of the sampled members
+     */
+    @Override
+    public boolean contains(Integer id) {
+        return memberIds.contains(id);
+    }
+
+    /**
+     * @return the size of the whole set, not just the sample
+     */
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isEstimated() {
+        return estimated;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public IdSet clone() {
+        return new SampledIdSet(new LinkedHashSet<Integer>(memberIds), size, estimated);
+    }
+
+    /**
+     * Combines the sampled members only, after which the size is the number of members left, since nothing is known
+     * about the rest of the whole set any more. The same goes for {@link #removeAll(IdSet)} and {@link #addAll(IdSet)}.
+     */
+    @Override
+    public void retainAll(IdSet idSet) {
+        memberIds.retainAll(idSet.getMemberIds());
+        sizeIsMemberCount();
+    }
+
+    @Override
+    public void removeAll(IdSet idSet) {
+        memberIds.removeAll(idSet.getMemberIds());
+        sizeIsMemberCount();
+    }
+
+    @Override
+    public void addAll(IdSet idSet) {
+        memberIds.addAll(idSet.getMemberIds());
+        sizeIsMemberCount();
+    }
+
+    private void sizeIsMemberCount() {
+        size = memberIds.size();
+        estimated = false;
+    }
+
+    @Override
+    public void setMemberIds(Set set) { memberIds = set; }
+
+}
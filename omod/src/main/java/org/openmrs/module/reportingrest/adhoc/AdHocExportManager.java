@@ -14,9 +14,14 @@
 
 package org.openmrs.module.reportingrest.adhoc;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.User;
 import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.SerializedObject;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.RowPerObjectDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
@@ -30,15 +35,27 @@ import org.openmrs.module.reporting.report.definition.service.ReportDefinitionSe
 import org.openmrs.module.reporting.report.renderer.RenderingMode;
 import org.openmrs.module.reporting.report.renderer.XlsReportRenderer;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.UnsupportedEncodingException;
+import java.sql.Clob;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Equivalent to a Service for managing AdHocDataSets, which are a simplified, web-client-friendly view of
@@ -52,6 +69,16 @@ public class AdHocExportManager {
 
     public static final String NAME_PREFIX = "[AdHocDataExport] ";
 
+    public static final String GP_CLEANUP_BATCH_SIZE = "reportingrest.adhocExport.cleanup.batchSize";
+
+    public static final String GP_CLEANUP_TIME_BUDGET_SECONDS = "reportingrest.adhocExport.cleanup.timeBudgetSeconds";
+
+    public static final int DEFAULT_CLEANUP_BATCH_SIZE = 50;
+
+    public static final int DEFAULT_CLEANUP_TIME_BUDGET_SECONDS = 60;
+
+    private static Log log = LogFactory.getLog(AdHocExportManager.class);
+
     @Autowired
     private ReportDefinitionService reportDefinitionService;
 
@@ -61,27 +88,99 @@ public class AdHocExportManager {
     @Autowired
     private ReportService reportService;
 
+    @Autowired
+    private DbSessionFactory sessionFactory;
+
+    /**
+     * What we need to know about each ad hoc data set to list them, by uuid, so that listing does not deserialize every
+     * definition. Kept up to date by saveAdHocDataSet and purgeAdHocDataSet, and reconciled on each listing (see
+     * {@link #reconcileIndex()}) to pick up changes made elsewhere.
+     */
+    private final ConcurrentMap<String, IndexEntry> index = new ConcurrentHashMap<String, IndexEntry>();
+
+    /**
+     * @param user
+     * @return the ad hoc data sets that user can view, ordered by name
+     */
     public List<AdHocDataSet> getAdHocDataSets(User user) {
+        reconcileIndex();
+
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        for (IndexEntry entry : index.values()) {
+            if (user != null && user.getUuid().equals(entry.creatorUuid)) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<IndexEntry>() {
+            @Override
+            public int compare(IndexEntry left, IndexEntry right) {
+                int result = left.name.compareToIgnoreCase(right.name);
+                return result != 0 ? result : left.dataSet.getUuid().compareTo(right.dataSet.getUuid());
+            }
+        });
+
         List<AdHocDataSet> list = new ArrayList<AdHocDataSet>();
+        for (IndexEntry entry : entries) {
+            list.add(entry.dataSet);
+        }
+        return list;
+    }
+
+    /**
+     * Deserializes the ad hoc data sets that are not indexed yet, or that were saved since they were indexed (their
+     * serialized object's date_changed differs, or their name does), and drops any that no longer exist. This costs
+     * one query for the summaries and one for the versions, whatever the number of data sets.
+     * <p>
+     * Changes made elsewhere within the same second as the indexed version may be missed while the database stores
+     * date_changed in whole seconds, until the data set is saved again.
+     */
+    private void reconcileIndex() {
+        Map<String, Long> versions = getVersions();
+        Set<String> uuids = new HashSet<String>();
         for (DefinitionSummary summary : dataSetDefinitionService.getAllDefinitionSummaries(false)) {
             if (summary.getName().startsWith(NAME_PREFIX)) {
-                RowPerObjectDataSetDefinition dsd;
-                try {
-                    dsd = getAdHocDataSetByUuid(summary.getUuid());
-                }
-                catch (APIAuthenticationException ex) {
-                    continue;
+                uuids.add(summary.getUuid());
+                IndexEntry entry = index.get(summary.getUuid());
+                Long version = versions.get(summary.getUuid());
+                if (entry == null || !entry.name.equals(summary.getName()) || version == null || entry.version != version) {
+                    DataSetDefinition dsd = dataSetDefinitionService.getDefinitionByUuid(summary.getUuid());
+                    if (dsd != null) {
+                        addToIndex(dsd, dsd.getCreator(), version);
+                    }
                 }
-                list.add(new AdHocDataSet(dsd));
             }
         }
+        index.keySet().retainAll(uuids);
+    }
 
-        return list;
+    private void addToIndex(DataSetDefinition dsd, User creator, Long version) {
+        index.put(dsd.getUuid(), new IndexEntry(dsd.getName(), creator == null ? null : creator.getUuid(),
+                version == null ? 0L : version, new AdHocDataSet(dsd)));
+    }
+
+    /**
+     * @return uuid -> date_changed (or else date_created) in milliseconds, of each serialized ad hoc definition
+     */
+    private Map<String, Long> getVersions() {
+        List<Object[]> rows = sessionFactory.getCurrentSession().createSQLQuery(
+                "select so.uuid, so.date_created, so.date_changed from serialized_object so where so.name like :prefix")
+                .addSynchronizedEntityClass(SerializedObject.class)
+                .setParameter("prefix", NAME_PREFIX + "%")
+                .list();
+        Map<String, Long> versions = new HashMap<String, Long>();
+        for (Object[] row : rows) {
+            Date version = row[2] != null ? (Date) row[2] : (Date) row[1];
+            versions.put((String) row[0], version == null ? 0L : version.getTime());
+        }
+        return versions;
     }
 
     public RowPerObjectDataSetDefinition saveAdHocDataSet(RowPerObjectDataSetDefinition dataSetDefinition) {
         markAsAdHoc(dataSetDefinition);
-        return dataSetDefinitionService.saveDefinition(dataSetDefinition);
+        RowPerObjectDataSetDefinition saved = dataSetDefinitionService.saveDefinition(dataSetDefinition);
+        // the creator is set when the definition is first saved, and the version is filled in by the next listing
+        addToIndex(saved, saved.getCreator() != null ? saved.getCreator() : Context.getAuthenticatedUser(), null);
+        return saved;
     }
 
     public RowPerObjectDataSetDefinition getAdHocDataSetByUuid(String uuid) {
@@ -105,6 +204,7 @@ public class AdHocExportManager {
         verifyAdHoc(dataSetDefinition);
         if (canEdit(Context.getAuthenticatedUser(), dataSetDefinition)) {
             dataSetDefinitionService.purgeDefinition(dataSetDefinition);
+            index.remove(dataSetDefinition.getUuid());
         }
         else {
             throw new APIAuthenticationException(Context.getAuthenticatedUser() + " does not have permission to edit this data set");
@@ -129,10 +229,19 @@ public class AdHocExportManager {
         }
         copyParametersFromDsds(rd);
 
-        rd.setName(NAME_PREFIX + "by " + Context.getAuthenticatedUser().getUsername() + " at " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
-        rd.setDescription(OpenmrsUtil.join(datasetNames, ", "));
+        // re-running the same export reuses the report definition that was saved the first time
+        String uuid = buildTransientReportDefinitionUuid(dsdUuids, rd.getParameters());
+        ReportDefinition existing = reportDefinitionService.getDefinitionByUuid(uuid);
+        if (existing != null) {
+            rd = existing;
+        }
+        else {
+            rd.setUuid(uuid);
+            rd.setName(NAME_PREFIX + "by " + Context.getAuthenticatedUser().getUsername() + " at " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            rd.setDescription(OpenmrsUtil.join(datasetNames, ", "));
 
-        reportDefinitionService.saveDefinition(rd);
+            reportDefinitionService.saveDefinition(rd);
+        }
 
         if (renderingMode == null) {
             renderingMode = new RenderingMode(new XlsReportRenderer(), "XLS", null, 0);
@@ -145,6 +254,58 @@ public class AdHocExportManager {
         return request;
     }
 
+    /**
+     * @param dsdUuids
+     * @param parameters the merged parameters of the data sets
+     * @return a uuid that only depends on the data sets, in order, their saved content, and the parameters
+     */
+    private String buildTransientReportDefinitionUuid(List<String> dsdUuids, List<Parameter> parameters) {
+        Map<String, String> versions = getSerializedDataHashes(dsdUuids);
+        StringBuilder canonical = new StringBuilder();
+        for (String uuid : dsdUuids) {
+            canonical.append("dataSet=").append(uuid).append(":").append(versions.get(uuid)).append("|");
+        }
+        for (Parameter parameter : parameters) {
+            canonical.append("parameter=").append(parameter.getName())
+                    .append(":").append(parameter.getType() == null ? null : parameter.getType().getName())
+                    .append(":").append(parameter.getCollectionType() == null ? null : parameter.getCollectionType().getName())
+                    .append("|");
+        }
+        try {
+            return UUID.nameUUIDFromBytes(canonical.toString().getBytes("UTF-8")).toString();
+        }
+        catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Hashing the serialized data tells us whether a data set has changed, without deserializing it
+     *
+     * @param uuids
+     * @return uuid -> hash of the saved definition
+     */
+    private Map<String, String> getSerializedDataHashes(List<String> uuids) {
+        List<Object[]> rows = sessionFactory.getCurrentSession().createSQLQuery(
+                "select so.uuid, so.serialized_data from serialized_object so where so.uuid in (:uuids)")
+                .setParameterList("uuids", uuids)
+                .list();
+        Map<String, String> hashes = new HashMap<String, String>();
+        for (Object[] row : rows) {
+            try {
+                Object data = row[1];
+                if (data instanceof Clob) {
+                    data = ((Clob) data).getSubString(1, (int) ((Clob) data).length());
+                }
+                hashes.put((String) row[0], DigestUtils.sha256Hex(String.valueOf(data)));
+            }
+            catch (SQLException ex) {
+                throw new IllegalStateException("Failed to read serialized definition " + row[0], ex);
+            }
+        }
+        return hashes;
+    }
+
     private static String removeNamePrefix(String withPrefix) {
         if (withPrefix.startsWith(NAME_PREFIX)) {
             return withPrefix.substring(NAME_PREFIX.length());
@@ -208,19 +369,62 @@ public class AdHocExportManager {
      *     <li>Eventually the ReportRequest is deleted due to age (unless a user marked it as Saved)</li>
      *     <li>At that point, org.openmrs.module.reportingui.task.DeleteOldOldAdHocReportDefinitionsTask will call this method, which deletes the ReportRequest</li>
      * </ol>
+     *
+     * The unreferenced definitions are found with one query, and deleted in batches of
+     * reportingrest.adhocExport.cleanup.batchSize, until reportingrest.adhocExport.cleanup.timeBudgetSeconds have
+     * passed. Whatever is left is deleted on the next run.
      */
     public void deleteTransientReportDefinitions() {
-        for (DefinitionSummary summary : reportDefinitionService.getAllDefinitionSummaries(true)) {
-            if (summary.getName().startsWith(NAME_PREFIX)) {
-                // tagged as [AdHocDataExport]
-                ReportDefinition candidate = reportDefinitionService.getDefinitionByUuid(summary.getUuid());
-                List<ReportRequest> requestsForCandidate = reportService.getReportRequests(candidate, null, null, 1);
-                if (requestsForCandidate.size() == 0) {
-                    // not referenced by any existing ReportRequest
+        deleteTransientReportDefinitionsAndCount();
+    }
+
+    /**
+     * Like {@link #deleteTransientReportDefinitions()}
+     *
+     * @return the number of ReportDefinitions deleted
+     */
+    public int deleteTransientReportDefinitionsAndCount() {
+        long startTime = System.currentTimeMillis();
+        int batchSize = Math.max(1, GlobalPropertyUtil.getInteger(GP_CLEANUP_BATCH_SIZE, DEFAULT_CLEANUP_BATCH_SIZE));
+        long deadline = startTime + 1000L * GlobalPropertyUtil.getInteger(GP_CLEANUP_TIME_BUDGET_SECONDS,
+                DEFAULT_CLEANUP_TIME_BUDGET_SECONDS);
+
+        List<String> unreferenced = getUnreferencedTransientReportDefinitionUuids();
+        int deleted = 0;
+        for (int from = 0; from < unreferenced.size(); from += batchSize) {
+            if (from > 0 && System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            for (String uuid : unreferenced.subList(from, Math.min(from + batchSize, unreferenced.size()))) {
+                ReportDefinition candidate = reportDefinitionService.getDefinitionByUuid(uuid);
+                if (candidate != null) {
                     deleteReportDefinitionAndDesigns(candidate);
+                    ++deleted;
                 }
             }
+            // deleted definitions and designs leave the session when it is flushed, so it doesn't grow with every
+            // batch, and we leave alone whatever else the caller has in the session
+            Context.flushSession();
         }
+
+        log.info("Found " + unreferenced.size() + " transient ad hoc report definitions not referenced by any report request, deleted "
+                + deleted + " in " + (System.currentTimeMillis() - startTime) + " ms"
+                + (deleted < unreferenced.size() ? ", the rest will be deleted on the next run" : ""));
+        return deleted;
+    }
+
+    /**
+     * @return uuids of ReportDefinitions tagged as [AdHocDataExport] that no ReportRequest refers to
+     */
+    private List<String> getUnreferencedTransientReportDefinitionUuids() {
+        return sessionFactory.getCurrentSession().createSQLQuery(
+                "select so.uuid from serialized_object so"
+                        + " where so.type = :type and so.name like :prefix"
+                        + " and not exists (select 1 from reporting_report_request r where r.report_definition_uuid = so.uuid)"
+                        + " order by so.serialized_object_id")
+                .setParameter("type", ReportDefinition.class.getName())
+                .setParameter("prefix", NAME_PREFIX + "%")
+                .list();
     }
 
     private void deleteReportDefinitionAndDesigns(ReportDefinition definition) {
@@ -230,6 +434,23 @@ public class AdHocExportManager {
         reportDefinitionService.purgeDefinition(definition);
     }
 
+    private class IndexEntry {
+
+        private final String name;
+
+        private final String creatorUuid;
+
+        private final long version;
+
+        private final AdHocDataSet dataSet;
+
+        IndexEntry(String name, String creatorUuid, long version, AdHocDataSet dataSet) {
+            this.name = name;
+            this.creatorUuid = creatorUuid;
+            this.version = version;
+            this.dataSet = dataSet;
+        }
+    }
 
     public class AdHocDataSet {
 
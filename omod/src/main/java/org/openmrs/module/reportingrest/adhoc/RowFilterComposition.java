@@ -0,0 +1,192 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.adhoc;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed customRowFilterCombination, like "1 AND (2 OR NOT 3)", that can be evaluated in memory against the
+ * already-evaluated row filters, instead of evaluating a CompositionCohortDefinition (which evaluates every row filter
+ * again).
+ * <p>
+ * Like the reporting module's composition cohort definitions, operators are case-insensitive and are applied left to
+ * right, without precedence, and NOT applies to the operand that follows it.
+ */
+public class RowFilterComposition {
+
+    private static final Pattern TOKEN = Pattern.compile("\\(|\\)|[^\\s()]+");
+
+    private enum Operator {
+        AND, OR
+    }
+
+    private final List<Object> expression;
+
+    private final boolean usesNot;
+
+    private RowFilterComposition(List<Object> expression, boolean usesNot) {
+        this.expression = expression;
+        this.usesNot = usesNot;
+    }
+
+    /**
+     * @param composition e.g. "1 AND (2 OR NOT 3)", where numbers refer to row filters, starting at 1
+     * @param numRowFilters
+     * @return the parsed composition
+     * @throws IllegalArgumentException if composition is not something we can evaluate in memory
+     */
+    public static RowFilterComposition parse(String composition, int numRowFilters) {
+        List<String> tokens = new ArrayList<String>();
+        Matcher matcher = TOKEN.matcher(composition);
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        Parser parser = new Parser(tokens, numRowFilters);
+        List<Object> expression = parser.parseExpression();
+        if (parser.position < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected " + tokens.get(parser.position) + " in " + composition);
+        }
+        return new RowFilterComposition(expression, parser.usesNot);
+    }
+
+    /**
+     * @return true if evaluating requires the set of all rows, because there is a NOT
+     */
+    public boolean usesNot() {
+        return usesNot;
+    }
+
+    /**
+     * @param rowFilterResults the member ids of each row filter, in order
+     * @param allRows only needed if {@link #usesNot()}
+     * @return the member ids of the composition
+     */
+    public Set<Integer> evaluate(List<? extends Set<Integer>> rowFilterResults, Set<Integer> allRows) {
+        return evaluate(expression, rowFilterResults, allRows);
+    }
+
+    private Set<Integer> evaluate(List<Object> phrase, List<? extends Set<Integer>> rowFilterResults, Set<Integer> allRows) {
+        Set<Integer> result = null;
+        Operator operator = null;
+        boolean not = false;
+        for (Object element : phrase) {
+            if (element instanceof Operator) {
+                operator = (Operator) element;
+                continue;
+            }
+            if (element == null) {
+                // stands for NOT
+                not = !not;
+                continue;
+            }
+
+            Set<Integer> operand;
+            if (element instanceof Integer) {
+                operand = new HashSet<Integer>(rowFilterResults.get((Integer) element - 1));
+            }
+            else {
+                operand = evaluate((List<Object>) element, rowFilterResults, allRows);
+            }
+            if (not) {
+                Set<Integer> complement = new HashSet<Integer>(allRows);
+                complement.removeAll(operand);
+                operand = complement;
+                not = false;
+            }
+
+            if (result == null) {
+                result = operand;
+            }
+            else if (operator == Operator.AND) {
+                result.retainAll(operand);
+            }
+            else {
+                result.addAll(operand);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses into nested lists, whose elements are operands (Integer or List), Operators, or null for NOT. The parser
+     * ensures that operands and operators alternate.
+     */
+    private static class Parser {
+
+        private final List<String> tokens;
+
+        private final int numRowFilters;
+
+        private int position = 0;
+
+        private boolean usesNot = false;
+
+        Parser(List<String> tokens, int numRowFilters) {
+            this.tokens = tokens;
+            this.numRowFilters = numRowFilters;
+        }
+
+        List<Object> parseExpression() {
+            List<Object> phrase = new ArrayList<Object>();
+            parseOperand(phrase);
+            while (position < tokens.size() && !tokens.get(position).equals(")")) {
+                String token = tokens.get(position++);
+                if (token.equalsIgnoreCase("and")) {
+                    phrase.add(Operator.AND);
+                }
+                else if (token.equalsIgnoreCase("or")) {
+                    phrase.add(Operator.OR);
+                }
+                else {
+                    throw new IllegalArgumentException("Expected AND or OR but found " + token);
+                }
+                parseOperand(phrase);
+            }
+            return phrase;
+        }
+
+        private void parseOperand(List<Object> phrase) {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Unexpected end of composition");
+            }
+            String token = tokens.get(position++);
+            if (token.equalsIgnoreCase("not")) {
+                usesNot = true;
+                phrase.add(null);
+                parseOperand(phrase);
+            }
+            else if (token.equals("(")) {
+                phrase.add(parseExpression());
+                if (position >= tokens.size() || !tokens.get(position++).equals(")")) {
+                    throw new IllegalArgumentException("Missing )");
+                }
+            }
+            else {
+                int index;
+                try {
+                    index = Integer.parseInt(token);
+                }
+                catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Expected a row filter number but found " + token);
+                }
+                if (index < 1 || index > numRowFilters) {
+                    throw new IllegalArgumentException("There is no row filter " + index);
+                }
+                phrase.add(index);
+            }
+        }
+    }
+
+}
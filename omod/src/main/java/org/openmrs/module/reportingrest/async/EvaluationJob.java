@@ -0,0 +1,158 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * An evaluation that was requested with ?async=true, and runs in the background on the {@link EvaluationJobManager}'s
+ * executor. The client polls it by uuid.
+ */
+public class EvaluationJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    private final String uuid = UUID.randomUUID().toString();
+
+    private final String resourceName;
+
+    private final String definitionUuid;
+
+    private final String submittedBy;
+
+    private final Date dateSubmitted = new Date();
+
+    private volatile Status status = Status.QUEUED;
+
+    private volatile Date dateStarted;
+
+    private volatile Date dateCompleted;
+
+    private volatile Object result;
+
+    private volatile String errorMessage;
+
+    private volatile Future<?> future;
+
+    /**
+     * @param resourceName e.g. "cohort", "dataSet", "reportdata"
+     * @param definitionUuid
+     * @param submittedBy uuid of the user who submitted this job
+     */
+    public EvaluationJob(String resourceName, String definitionUuid, String submittedBy) {
+        this.resourceName = resourceName;
+        this.definitionUuid = definitionUuid;
+        this.submittedBy = submittedBy;
+    }
+
+    synchronized void started() {
+        if (status == Status.QUEUED) {
+            status = Status.RUNNING;
+            dateStarted = new Date();
+        }
+    }
+
+    synchronized void completed(Object result) {
+        if (status == Status.RUNNING) {
+            this.result = result;
+            status = Status.COMPLETED;
+            dateCompleted = new Date();
+        }
+    }
+
+    synchronized void failed(Throwable error) {
+        if (status == Status.RUNNING) {
+            errorMessage = error.getMessage() == null ? error.getClass().getName() : error.getMessage();
+            status = Status.FAILED;
+            dateCompleted = new Date();
+        }
+    }
+
+    /**
+     * @return true if the job was cancelled, false if it had already finished
+     */
+    synchronized boolean cancel() {
+        if (isDone()) {
+            return false;
+        }
+        status = Status.CANCELLED;
+        dateCompleted = new Date();
+        if (future != null) {
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    public boolean isDone() {
+        return status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    /**
+     * The reporting module does not report progress from within an evaluation, so this is 0 until the job is done, and
+     * then 100.
+     *
+     * @return percent complete
+     */
+    public int getProgress() {
+        return isDone() ? 100 : 0;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    public String getDefinitionUuid() {
+        return definitionUuid;
+    }
+
+    public String getSubmittedBy() {
+        return submittedBy;
+    }
+
+    public Date getDateSubmitted() {
+        return dateSubmitted;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Date getDateStarted() {
+        return dateStarted;
+    }
+
+    public Date getDateCompleted() {
+        return dateCompleted;
+    }
+
+    /**
+     * @return the converted representation, if the job is completed
+     */
+    public Object getResult() {
+        return result;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+}
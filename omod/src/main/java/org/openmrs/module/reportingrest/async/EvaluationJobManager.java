@@ -0,0 +1,178 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs evaluations requested with ?async=true in the background, on a bounded thread pool owned by this module, and
+ * keeps their results until they expire.
+ * <p>
+ * Configured with the global properties reportingrest.evaluationJob.threads and reportingrest.evaluationJob.queueSize
+ * (read once, when the first job is submitted) and reportingrest.evaluationJob.ttlMinutes.
+ */
+@Component
+public class EvaluationJobManager implements DisposableBean {
+
+    public static final String GP_THREADS = "reportingrest.evaluationJob.threads";
+
+    public static final String GP_QUEUE_SIZE = "reportingrest.evaluationJob.queueSize";
+
+    public static final String GP_TTL_MINUTES = "reportingrest.evaluationJob.ttlMinutes";
+
+    public static final int DEFAULT_THREADS = 2;
+
+    public static final int DEFAULT_QUEUE_SIZE = 50;
+
+    public static final int DEFAULT_TTL_MINUTES = 60;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Map<String, EvaluationJob> jobs = new ConcurrentHashMap<String, EvaluationJob>();
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Submits work to be run in the background, as the currently-authenticated user
+     *
+     * @param resourceName e.g. "cohort", "dataSet", "reportdata"
+     * @param definitionUuid
+     * @param work should return the converted representation of the evaluated result
+     * @return the queued job
+     */
+    public EvaluationJob submit(String resourceName, String definitionUuid, final Callable<Object> work) {
+        purgeExpiredJobs();
+
+        final EvaluationJob job = new EvaluationJob(resourceName, definitionUuid, Context.getAuthenticatedUser().getUuid());
+        final Callable<Object> asUser = new UserContextCallable<Object>(work);
+        Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    job.started();
+                    job.completed(asUser.call());
+                }
+                catch (Throwable ex) {
+                    log.warn("Asynchronous evaluation " + job.getUuid() + " failed", ex);
+                    job.failed(ex);
+                }
+            }
+        };
+
+        jobs.put(job.getUuid(), job);
+        try {
+            job.setFuture(getExecutor().submit(runnable));
+        }
+        catch (RejectedExecutionException ex) {
+            jobs.remove(job.getUuid());
+            throw new IllegalStateException("Too many evaluations are queued already, try again later", ex);
+        }
+        return job;
+    }
+
+    /**
+     * @param uuid
+     * @return the job, or null if there is none (or it expired)
+     * @throws APIAuthenticationException if the job was submitted by another user
+     */
+    public EvaluationJob getJob(String uuid) {
+        purgeExpiredJobs();
+        EvaluationJob job = jobs.get(uuid);
+        if (job != null && !canView(Context.getAuthenticatedUser(), job)) {
+            throw new APIAuthenticationException(Context.getAuthenticatedUser() + " does not have permission to view this evaluation job");
+        }
+        return job;
+    }
+
+    /**
+     * Cancels the job if it has not finished yet, interrupting the evaluation if it is running
+     *
+     * @param uuid
+     * @return the job, or null if there is none
+     */
+    public EvaluationJob cancelJob(String uuid) {
+        EvaluationJob job = getJob(uuid);
+        if (job != null && job.cancel()) {
+            // drop the cancelled task from the queue, if it had not started yet
+            getExecutor().purge();
+        }
+        return job;
+    }
+
+    private boolean canView(User user, EvaluationJob job) {
+        return user != null && (user.isSuperUser() || user.getUuid().equals(job.getSubmittedBy()));
+    }
+
+    /**
+     * Drops finished jobs (and their results) that finished longer than the configured TTL ago
+     */
+    public void purgeExpiredJobs() {
+        long ttlMillis = GlobalPropertyUtil.getInteger(GP_TTL_MINUTES, DEFAULT_TTL_MINUTES) * 60 * 1000L;
+        long now = System.currentTimeMillis();
+        for (Iterator<EvaluationJob> i = jobs.values().iterator(); i.hasNext(); ) {
+            EvaluationJob job = i.next();
+            if (job.isDone() && job.getDateCompleted().getTime() + ttlMillis <= now) {
+                i.remove();
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, GlobalPropertyUtil.getInteger(GP_THREADS, DEFAULT_THREADS));
+            int queueSize = Math.max(1, GlobalPropertyUtil.getInteger(GP_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new EvaluationThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        jobs.clear();
+    }
+
+    private static class EvaluationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "reportingrest-evaluation-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
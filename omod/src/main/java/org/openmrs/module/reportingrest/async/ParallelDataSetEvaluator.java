@@ -0,0 +1,144 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.definition.DefinitionContext;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates the data sets of a report definition in parallel, each on its own worker thread, with its own session and
+ * the requesting user's context. The reporting module itself evaluates them one after another.
+ * <p>
+ * Opt-in, with the global property reportingrest.reportdata.parallelism, which is the maximum number of data sets
+ * evaluated at once, across all requests. 1 (the default) means data sets are evaluated sequentially, by the reporting
+ * module as usual.
+ */
+@Component
+public class ParallelDataSetEvaluator implements DisposableBean {
+
+    public static final String GP_PARALLELISM = "reportingrest.reportdata.parallelism";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final WorkerPool pool = new WorkerPool(GP_PARALLELISM, "reportingrest-dataset-");
+
+    /**
+     * @param definition
+     * @return true if the data sets of definition should be evaluated in parallel
+     */
+    public boolean isEnabledFor(ReportDefinition definition) {
+        return pool.getParallelism() > 1 && definition.getDataSetDefinitions().size() > 1;
+    }
+
+    /**
+     * Does the same as ReportDefinitionService.evaluate, except that the data sets are evaluated in parallel
+     *
+     * @param definition
+     * @param context
+     * @return
+     * @throws EvaluationException
+     */
+    public ReportData evaluate(ReportDefinition definition, EvaluationContext context) throws EvaluationException {
+        long start = System.currentTimeMillis();
+
+        if (definition.getBaseCohortDefinition() != null) {
+            Cohort baseCohort = DefinitionContext.getCohortDefinitionService().evaluate(definition.getBaseCohortDefinition(), context);
+            if (context.getBaseCohort() != null) {
+                Set<Integer> memberIds = new TreeSet<Integer>(baseCohort.getMemberIds());
+                memberIds.retainAll(context.getBaseCohort().getMemberIds());
+                baseCohort = new Cohort(memberIds);
+            }
+            context.setBaseCohort(baseCohort);
+        }
+
+        Map<String, Future<DataSet>> futures = new LinkedHashMap<String, Future<DataSet>>();
+        for (Map.Entry<String, Mapped<? extends DataSetDefinition>> entry : definition.getDataSetDefinitions().entrySet()) {
+            final Mapped<? extends DataSetDefinition> mapped = entry.getValue();
+            // each data set gets its own copy, since the context's cache is not thread-safe
+            final EvaluationContext dataSetContext = context.shallowCopy();
+            futures.put(entry.getKey(), pool.getExecutor().submit(new UserContextCallable<DataSet>(new Callable<DataSet>() {
+
+                @Override
+                public DataSet call() throws Exception {
+                    return DefinitionContext.getDataSetDefinitionService().evaluate(mapped, dataSetContext);
+                }
+            })));
+        }
+
+        Map<String, DataSet> dataSets = new LinkedHashMap<String, DataSet>();
+        try {
+            for (Map.Entry<String, Future<DataSet>> entry : futures.entrySet()) {
+                dataSets.put(entry.getKey(), getResult(entry.getKey(), entry.getValue()));
+            }
+        }
+        finally {
+            // if one data set failed, don't leave the others running
+            for (Future<DataSet> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+
+        ReportData reportData = new ReportData();
+        reportData.setDefinition(definition);
+        reportData.setContext(context);
+        reportData.setDataSets(dataSets);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Evaluated " + dataSets.size() + " data sets of " + definition.getName() + " in parallel in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return reportData;
+    }
+
+    private DataSet getResult(String key, Future<DataSet> future) throws EvaluationException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating data set " + key, ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof EvaluationException) {
+                throw (EvaluationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Error evaluating data set " + key, cause);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdown();
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates the row filters of an ad hoc query in parallel, each on its own worker thread, with its own session and the
+ * requesting user's context.
+ * <p>
+ * Opt-in, with the global property reportingrest.adhocquery.parallelism, which is the maximum number of row filters
+ * evaluated at once, across all requests. 1 (the default) means row filters are evaluated one after another, in the
+ * requesting thread.
+ */
+@Component
+public class ParallelRowFilterEvaluator implements DisposableBean {
+
+    public static final String GP_PARALLELISM = "reportingrest.adhocquery.parallelism";
+
+    private final WorkerPool pool = new WorkerPool(GP_PARALLELISM, "reportingrest-rowfilter-");
+
+    /**
+     * Each row filter should evaluate with its own copy of the evaluation context, since the context's cache is not
+     * thread-safe.
+     *
+     * @param rowFilters
+     * @return the results of rowFilters, in the same order
+     * @throws Exception the first exception thrown by a row filter, in order
+     */
+    public <T> List<T> evaluate(List<Callable<T>> rowFilters) throws Exception {
+        List<T> results = new ArrayList<T>();
+        if (pool.getParallelism() <= 1 || rowFilters.size() <= 1) {
+            for (Callable<T> rowFilter : rowFilters) {
+                results.add(rowFilter.call());
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (Callable<T> rowFilter : rowFilters) {
+            futures.add(pool.getExecutor().submit(new UserContextCallable<T>(rowFilter)));
+        }
+        try {
+            for (Future<T> future : futures) {
+                results.add(getResult(future));
+            }
+        }
+        finally {
+            // if one row filter failed, don't leave the others running
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating row filters", ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdown();
+    }
+
+}
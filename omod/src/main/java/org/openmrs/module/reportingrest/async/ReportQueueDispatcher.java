@@ -0,0 +1,108 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes the reporting module's queue of report requests on worker threads, so that queueing a report does not
+ * make the HTTP request wait while other queued reports run.
+ * <p>
+ * The global property reportingrest.reportQueue.workers is the maximum number of threads processing the queue at once
+ * (default 1). 0 processes the queue on the requesting thread, as before.
+ */
+@Component
+public class ReportQueueDispatcher implements DisposableBean {
+
+    public static final String GP_WORKERS = "reportingrest.reportQueue.workers";
+
+    private static Log log = LogFactory.getLog(ReportQueueDispatcher.class);
+
+    private final WorkerPool pool = new WorkerPool(GP_WORKERS, "reportingrest-reportqueue-");
+
+    /**
+     * number of wake-ups submitted to the pool that have not started yet
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Makes a worker process the queued reports, and returns without waiting for it. If called within a transaction,
+     * the worker starts after it commits, so that it sees the report that was just queued.
+     */
+    public void wake() {
+        if (GlobalPropertyUtil.getInteger(GP_WORKERS, 1) <= 0) {
+            getReportService().processNextQueuedReports();
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    submit();
+                }
+            });
+        }
+        else {
+            submit();
+        }
+    }
+
+    /**
+     * Wake-ups that arrive while every worker already has one waiting are dropped, since the waiting one will see the
+     * newly queued report too
+     */
+    private void submit() {
+        int parallelism = pool.getParallelism();
+        while (true) {
+            int current = pending.get();
+            if (current >= parallelism) {
+                return;
+            }
+            if (pending.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        pool.getExecutor().submit(new UserContextCallable<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                // reports queued from now on need another wake-up
+                pending.decrementAndGet();
+                try {
+                    getReportService().processNextQueuedReports();
+                }
+                catch (RuntimeException ex) {
+                    log.error("Failed to process queued reports", ex);
+                }
+                return null;
+            }
+        }));
+    }
+
+    private ReportService getReportService() {
+        return Context.getService(ReportService.class);
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdown();
+    }
+
+}
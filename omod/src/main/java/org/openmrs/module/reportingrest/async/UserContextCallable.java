@@ -0,0 +1,52 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Wraps a Callable so that it can run on another thread: it opens its own session there, and runs as the user who was
+ * authenticated on the thread that created this wrapper.
+ *
+ * @param <V> result type
+ */
+public class UserContextCallable<V> implements Callable<V> {
+
+    private final UserContext userContext;
+
+    private final Callable<V> delegate;
+
+    /**
+     * Must be constructed on the thread whose user should be used
+     *
+     * @param delegate
+     */
+    public UserContextCallable(Callable<V> delegate) {
+        this.userContext = Context.getUserContext();
+        this.delegate = delegate;
+    }
+
+    @Override
+    public V call() throws Exception {
+        Context.openSession();
+        try {
+            Context.setUserContext(userContext);
+            return delegate.call();
+        }
+        finally {
+            Context.clearUserContext();
+            Context.closeSession();
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lazily-created pool of daemon threads, whose size is a global property, and follows changes to it
+ */
+class WorkerPool {
+
+    private final String parallelismGlobalProperty;
+
+    private final String threadNamePrefix;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * @param parallelismGlobalProperty name of the global property with the number of threads, default 1
+     * @param threadNamePrefix
+     */
+    WorkerPool(String parallelismGlobalProperty, String threadNamePrefix) {
+        this.parallelismGlobalProperty = parallelismGlobalProperty;
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    int getParallelism() {
+        return Math.max(1, GlobalPropertyUtil.getInteger(parallelismGlobalProperty, 1));
+    }
+
+    synchronized ThreadPoolExecutor getExecutor() {
+        int parallelism = getParallelism();
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory(threadNamePrefix));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        else if (executor.getMaximumPoolSize() != parallelism) {
+            // the global property changed; order matters, since core size may not exceed maximum size
+            if (parallelism > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(parallelism);
+                executor.setCorePoolSize(parallelism);
+            }
+            else {
+                executor.setCorePoolSize(parallelism);
+                executor.setMaximumPoolSize(parallelism);
+            }
+        }
+        return executor;
+    }
+
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final String prefix;
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openmrs.module.reporting.evaluation.Evaluated;
+
+/**
+ * An entry in the {@link EvaluationResultCache}. This is either a full evaluation, or (for count-only requests) just
+ * the number of results, cached under the same key.
+ */
+public class CachedEvaluation {
+
+    private final Evaluated<?> evaluated;
+
+    private final Integer count;
+
+    private final String etag;
+
+    private final long dateCached;
+
+    public CachedEvaluation(String key, Evaluated<?> evaluated) {
+        this(key, evaluated, null);
+    }
+
+    public CachedEvaluation(String key, Integer count) {
+        this(key, null, count);
+    }
+
+    private CachedEvaluation(String key, Evaluated<?> evaluated, Integer count) {
+        this.evaluated = evaluated;
+        this.count = count;
+        this.dateCached = System.currentTimeMillis();
+        // a new evaluation under the same key may give a different result, so the time it was cached is part of the etag
+        this.etag = "\"" + DigestUtils.sha256Hex(key + "@" + dateCached) + "\"";
+    }
+
+    /**
+     * @return the full evaluation, or null if only the count was cached
+     */
+    public Evaluated<?> getEvaluated() {
+        return evaluated;
+    }
+
+    /**
+     * @return the number of results, or null if this is a full evaluation
+     */
+    public Integer getCount() {
+        return count;
+    }
+
+    public boolean isCountOnly() {
+        return evaluated == null;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public long getDateCached() {
+        return dateCached;
+    }
+
+}
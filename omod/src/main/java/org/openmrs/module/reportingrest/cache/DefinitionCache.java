@@ -0,0 +1,164 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.db.SerializedObject;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.definition.service.DefinitionService;
+import org.openmrs.module.reporting.evaluation.Definition;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reportingrest.util.DefinitionCopier;
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+/**
+ * Holds deserialized definitions, by uuid and version (the date_changed of the serialized object), since deserializing
+ * a definition (and every definition it refers to) can take longer than evaluating it, e.g. for small data sets that
+ * are polled by dashboards. Each caller gets its own copy (see {@link DefinitionCopier}), so that an evaluation cannot
+ * change the cached definition. The cached copy refers to persistent objects (concepts, locations...) by
+ * {@link EntityReference}, and these are loaded in the caller's session when it gets its copy, so no two requests
+ * share them.
+ * <p>
+ * Checking the version costs one query by uuid, so a definition saved elsewhere is picked up right away. Since
+ * definitions refer to other definitions, which have their own versions, {@link DefinitionCacheAdvice} also drops
+ * cached definitions when any definition is saved or purged through the reporting module's definition services.
+ * <p>
+ * Configured with the global properties reportingrest.cache.definitions.ttlSeconds (0 disables this cache) and
+ * reportingrest.cache.definitions.maxEntries.
+ */
+@Component
+public class DefinitionCache {
+
+    public static final String GP_TTL_SECONDS = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "definitions"
+            + EvaluationResultCache.TTL_SECONDS_SUFFIX;
+
+    public static final String GP_MAX_ENTRIES = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "definitions"
+            + EvaluationResultCache.MAX_ENTRIES_SUFFIX;
+
+    public static final int DEFAULT_TTL_SECONDS = 300;
+
+    public static final int DEFAULT_MAX_ENTRIES = 200;
+
+    private static final Log log = LogFactory.getLog(DefinitionCache.class);
+
+    @Autowired
+    private DbSessionFactory sessionFactory;
+
+    private ExpiringLruCache<String, CachedDefinition> cache;
+
+    /**
+     * @param type
+     * @param svc used to load the definition if it is not cached, or has changed since
+     * @param uuid
+     * @return a copy of the definition, or null if there is none of this type
+     */
+    public <T extends Definition> T getDefinition(Class<T> type, DefinitionService<T> svc, String uuid) {
+        ExpiringLruCache<String, CachedDefinition> cache = getCache();
+        if (cache == null) {
+            return svc.getDefinitionByUuid(uuid);
+        }
+        Long version = getVersion(uuid);
+        if (version == null) {
+            // not a serialized definition, so we cannot tell whether a cached one is current
+            return svc.getDefinitionByUuid(uuid);
+        }
+        CachedDefinition cached = cache.get(uuid);
+        if (cached != null && cached.version == version && type.isInstance(cached.definition)) {
+            return type.cast(DefinitionCopier.copy(cached.definition, EntityReference.attachTo(sessionFactory.getCurrentSession())));
+        }
+
+        T definition = svc.getDefinitionByUuid(uuid);
+        if (definition != null) {
+            try {
+                // we keep our own copy, since the caller may change this one, and it outlives the caller's session
+                cache.put(uuid, new CachedDefinition(version, DefinitionCopier.copy(definition, EntityReference.DETACH)));
+            }
+            catch (IllegalArgumentException ex) {
+                log.debug("Not caching definition " + uuid + ", since it cannot be copied", ex);
+            }
+        }
+        return definition;
+    }
+
+    /**
+     * Drops what is cached for a definition that was changed or purged
+     *
+     * @param definition
+     */
+    public synchronized void definitionChanged(Definition definition) {
+        if (cache == null) {
+            return;
+        }
+        if (definition instanceof ReportDefinition && definition.getUuid() != null) {
+            cache.remove(definition.getUuid());
+        }
+        else {
+            // other definitions are embedded in the report definitions that use them
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return date_changed (or else date_created) of the serialized object, in milliseconds, or null if there is none
+     */
+    private Long getVersion(String uuid) {
+        Object[] dates = (Object[]) sessionFactory.getCurrentSession()
+                .createSQLQuery("select so.date_created, so.date_changed from serialized_object so where so.uuid = :uuid")
+                .addSynchronizedEntityClass(SerializedObject.class)
+                .setParameter("uuid", uuid)
+                .uniqueResult();
+        if (dates == null) {
+            return null;
+        }
+        Date version = dates[1] != null ? (Date) dates[1] : (Date) dates[0];
+        return version == null ? 0L : version.getTime();
+    }
+
+    private synchronized ExpiringLruCache<String, CachedDefinition> getCache() {
+        int ttlSeconds = GlobalPropertyUtil.getInteger(GP_TTL_SECONDS, DEFAULT_TTL_SECONDS);
+        if (ttlSeconds <= 0) {
+            cache = null;
+            return null;
+        }
+        int maxEntries = GlobalPropertyUtil.getInteger(GP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+        if (maxEntries <= 0) {
+            maxEntries = DEFAULT_MAX_ENTRIES;
+        }
+        if (cache == null || cache.getTtlMillis() != ttlSeconds * 1000L || cache.getMaxEntries() != maxEntries) {
+            // first use, or the global properties were changed, so we start over
+            cache = new ExpiringLruCache<String, CachedDefinition>(maxEntries, ttlSeconds * 1000L);
+        }
+        return cache;
+    }
+
+    public synchronized void clear() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    private static class CachedDefinition {
+
+        private final long version;
+
+        private final Definition definition;
+
+        CachedDefinition(long version, Definition definition) {
+            this.version = version;
+            this.definition = definition;
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.evaluation.Definition;
+import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Registered (in config.xml) on the reporting module's definition services, to drop cached definitions, and cached
+ * results of the reportDataSet endpoint, when a definition is saved or purged
+ */
+public class DefinitionCacheAdvice implements AfterReturningAdvice {
+
+    @Override
+    public void afterReturning(Object returnValue, Method method, Object[] args, Object target) {
+        if (!method.getName().startsWith("save") && !method.getName().startsWith("purge")) {
+            return;
+        }
+        for (Object arg : args) {
+            if (arg instanceof Definition) {
+                Context.getRegisteredComponents(DefinitionCache.class).get(0).definitionChanged((Definition) arg);
+                Context.getRegisteredComponents(EvaluationResultCache.class).get(0)
+                        .clear(ReportingRestController.REPORT_DATA_SET_CACHE);
+            }
+        }
+    }
+
+}
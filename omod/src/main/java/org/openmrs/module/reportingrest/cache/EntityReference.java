@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.hibernate.proxy.HibernateProxyHelper;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.module.reporting.evaluation.Definition;
+import org.openmrs.module.reportingrest.util.DefinitionCopier;
+
+import java.io.Serializable;
+
+/**
+ * Stands in for a persistent OpenMRS object (a concept, location, patient...) in something that is cached, so that the
+ * cache doesn't hold on to objects that belong to the Hibernate session of the request that cached them. Each request
+ * that uses the cached value loads the object again, in its own session.
+ */
+public class EntityReference {
+
+    /**
+     * Replaces persistent OpenMRS objects by references to them
+     */
+    public static final DefinitionCopier.Replacer DETACH = new DefinitionCopier.Replacer() {
+
+        @Override
+        public Object replace(Object original) {
+            EntityReference reference = of(original);
+            return reference == null ? original : reference;
+        }
+    };
+
+    private final Class<?> type;
+
+    private final Serializable id;
+
+    private EntityReference(Class<?> type, Serializable id) {
+        this.type = type;
+        this.id = id;
+    }
+
+    /**
+     * @param value
+     * @return a reference to value if it is a persistent OpenMRS object, or null if it is not
+     */
+    public static EntityReference of(Object value) {
+        if (!(value instanceof OpenmrsObject) || value instanceof Definition) {
+            return null;
+        }
+        Integer id = ((OpenmrsObject) value).getId();
+        if (id == null) {
+            // not saved, e.g. an evaluated cohort, so it doesn't belong to a session
+            return null;
+        }
+        return new EntityReference(HibernateProxyHelper.getClassWithoutInitializingProxy(value), id);
+    }
+
+    /**
+     * @param session
+     * @return the referenced object, as loaded in session, or null if it no longer exists
+     */
+    public Object load(DbSession session) {
+        return session.get(type, id);
+    }
+
+    /**
+     * @param session
+     * @return replaces references by the objects they refer to, as loaded in session
+     */
+    public static DefinitionCopier.Replacer attachTo(final DbSession session) {
+        return new DefinitionCopier.Replacer() {
+
+            @Override
+            public Object replace(Object original) {
+                return original instanceof EntityReference ? ((EntityReference) original).load(session) : original;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return type.getSimpleName() + "#" + id;
+    }
+
+}
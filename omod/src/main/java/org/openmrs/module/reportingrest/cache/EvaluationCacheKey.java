@@ -0,0 +1,112 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openmrs.Cohort;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.reporting.evaluation.Definition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Builds cache keys for evaluations. Two evaluations get the same key if they are of the same version of the same
+ * definition, with equal parameter values, limit and base cohort.
+ * <p>
+ * The evaluation date is deliberately not part of the key, since it defaults to "now" and would make every key unique.
+ */
+public class EvaluationCacheKey {
+
+    private EvaluationCacheKey() {
+    }
+
+    /**
+     * @param definition must have a uuid
+     * @param context
+     * @return definition uuid, followed by a SHA-256 hash of the definition version and evaluation context
+     */
+    public static String build(Definition definition, EvaluationContext context) {
+        if (definition.getUuid() == null) {
+            throw new IllegalArgumentException("Cannot build a cache key for a definition without a uuid");
+        }
+        StringBuilder canonical = new StringBuilder();
+        canonical.append("version=").append(getVersion(definition));
+        canonical.append("|limit=").append(context.getLimit());
+        canonical.append("|parameters=").append(canonicalize(context.getParameterValues()));
+        canonical.append("|baseCohort=").append(context.getBaseCohort() == null ? "none" : canonicalize(context.getBaseCohort()));
+        return definition.getUuid() + ":" + DigestUtils.sha256Hex(canonical.toString());
+    }
+
+    /**
+     * Definitions from libraries are not persisted, and have no dates, so their version is just 0
+     */
+    private static long getVersion(Definition definition) {
+        Date version = definition.getDateChanged() != null ? definition.getDateChanged() : definition.getDateCreated();
+        return version == null ? 0 : version.getTime();
+    }
+
+    /**
+     * @param value
+     * @return a string that is equal for equal values, regardless of e.g. iteration order of sets and maps
+     */
+    static String canonicalize(Object value) {
+        if (value == null) {
+            return "null";
+        }
+        else if (value instanceof Cohort) {
+            // before OpenmrsObject, since a cohort built for a request gets a random uuid
+            return "cohort:" + new TreeSet<Integer>(((Cohort) value).getMemberIds());
+        }
+        else if (value instanceof OpenmrsObject) {
+            // the runtime class may be a hibernate proxy, so we rely on the uuid alone
+            return "uuid:" + ((OpenmrsObject) value).getUuid();
+        }
+        else if (value instanceof Date) {
+            return "date:" + ((Date) value).getTime();
+        }
+        else if (value instanceof Map) {
+            Map<String, String> sorted = new TreeMap<String, String>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(canonicalize(entry.getKey()), canonicalize(entry.getValue()));
+            }
+            return "map:" + sorted;
+        }
+        else if (value instanceof Collection) {
+            List<String> items = new ArrayList<String>();
+            for (Object item : (Collection<?>) value) {
+                items.add(canonicalize(item));
+            }
+            if (value instanceof Set) {
+                Collections.sort(items);
+            }
+            return "collection:" + items;
+        }
+        else if (value instanceof Object[]) {
+            List<String> items = new ArrayList<String>();
+            for (Object item : (Object[]) value) {
+                items.add(canonicalize(item));
+            }
+            return "array:" + items;
+        }
+        else {
+            return value.getClass().getName() + ":" + value;
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetMetaData;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.evaluation.Evaluated;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reportingrest.util.DefinitionCopier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts evaluated cohorts, data sets and reports to and from the form they are kept in by the
+ * {@link EvaluationResultCache}. An evaluation refers to persistent objects (e.g. the location given as a parameter, or
+ * the concepts and patients in data set cells) that belong to the Hibernate session of the request that evaluated it,
+ * so before caching, these are replaced by {@link EntityReference}s, and each request that uses the cached evaluation
+ * gets a copy in which they are loaded in its own session.
+ * <p>
+ * Only what is rendered is detached: the cells of data sets, and the parameter and context values of evaluation
+ * contexts. Results that don't refer to persistent objects (the usual case) are cached and returned as they are.
+ */
+@Component
+public class EvaluationDetacher {
+
+    private static final Log log = LogFactory.getLog(EvaluationDetacher.class);
+
+    @Autowired
+    private DbSessionFactory sessionFactory;
+
+    /**
+     * @param evaluated
+     * @return evaluated, or a copy of it that refers to no persistent objects, or null if it cannot be copied (and so
+     * should not be cached)
+     */
+    public Evaluated<?> detach(Evaluated<?> evaluated) {
+        try {
+            return copy(evaluated, null);
+        }
+        catch (IllegalArgumentException ex) {
+            log.debug("Not caching a " + evaluated.getClass().getName() + ", since it cannot be detached", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param detached as returned by {@link #detach(Evaluated)}
+     * @return detached, or a copy of it with the persistent objects it refers to loaded in the current session
+     */
+    public Evaluated<?> attach(Evaluated<?> detached) {
+        return copy(detached, sessionFactory.getCurrentSession());
+    }
+
+    /**
+     * @param object a definition or evaluation context
+     * @return a copy of object in which persistent objects are replaced by {@link EntityReference}s
+     */
+    public <T> T detachCopy(T object) {
+        return DefinitionCopier.copy(object, EntityReference.DETACH);
+    }
+
+    /**
+     * @param detached as returned by {@link #detachCopy(Object)}
+     * @return a copy of detached with the persistent objects it refers to loaded in the current session
+     */
+    public <T> T attachCopy(T detached) {
+        return DefinitionCopier.copy(detached, EntityReference.attachTo(sessionFactory.getCurrentSession()));
+    }
+
+    /**
+     * @param evaluated
+     * @param session null to detach, or the session to attach to
+     * @return evaluated if nothing in it needs to be replaced, or else a copy
+     */
+    private Evaluated<?> copy(Evaluated<?> evaluated, DbSession session) {
+        if (evaluated instanceof DataSet) {
+            return copyDataSet((DataSet) evaluated, session);
+        }
+        if (evaluated instanceof ReportData) {
+            ReportData reportData = (ReportData) evaluated;
+            EvaluationContext context = copyContext(reportData.getContext(), session);
+            boolean changed = context != reportData.getContext();
+            Map<String, DataSet> dataSets = new LinkedHashMap<String, DataSet>();
+            for (Map.Entry<String, DataSet> entry : reportData.getDataSets().entrySet()) {
+                DataSet dataSet = copyDataSet(entry.getValue(), session);
+                changed = changed || dataSet != entry.getValue();
+                dataSets.put(entry.getKey(), dataSet);
+            }
+            if (!changed) {
+                return reportData;
+            }
+            ReportData copy = new ReportData();
+            copy.setDefinition(reportData.getDefinition());
+            copy.setContext(context);
+            copy.setDataSets(dataSets);
+            return copy;
+        }
+        if (evaluated instanceof EvaluatedCohort) {
+            // the members are just ids
+            EvaluatedCohort cohort = (EvaluatedCohort) evaluated;
+            EvaluationContext context = copyContext(cohort.getContext(), session);
+            return context == cohort.getContext() ? cohort : new EvaluatedCohort(cohort, cohort.getDefinition(), context);
+        }
+        throw new IllegalArgumentException("Cannot detach a " + evaluated.getClass().getName());
+    }
+
+    private DataSet copyDataSet(DataSet dataSet, DbSession session) {
+        EvaluationContext context = copyContext(dataSet.getContext(), session);
+        boolean changed = context != dataSet.getContext();
+        if (!changed) {
+            for (DataSetRow row : dataSet) {
+                if (needsCopy(row.getColumnValues().values(), session)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (!changed) {
+            return dataSet;
+        }
+        List<DataSetRow> rows = new ArrayList<DataSetRow>();
+        for (DataSetRow row : dataSet) {
+            DataSetRow copy = new DataSetRow();
+            for (Map.Entry<DataSetColumn, Object> entry : row.getColumnValues().entrySet()) {
+                copy.addColumnValue(entry.getKey(), copyValue(entry.getValue(), session));
+            }
+            rows.add(copy);
+        }
+        return new DetachedDataSet(dataSet.getMetaData(), dataSet.getDefinition(), context, rows);
+    }
+
+    private EvaluationContext copyContext(EvaluationContext context, DbSession session) {
+        if (context == null || (!needsCopy(context.getParameterValues(), session)
+                && !needsCopy(context.getContextValues(), session))) {
+            return context;
+        }
+        return DefinitionCopier.copy(context, session == null ? EntityReference.DETACH : EntityReference.attachTo(session));
+    }
+
+    private boolean needsCopy(Collection<?> values, DbSession session) {
+        for (Object value : values) {
+            if (needsCopy(value, session)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean needsCopy(Object value, DbSession session) {
+        if (value instanceof Collection) {
+            return needsCopy((Collection<?>) value, session);
+        }
+        if (value instanceof Map) {
+            return needsCopy(((Map<?, ?>) value).values(), session);
+        }
+        return session == null ? EntityReference.of(value) != null : value instanceof EntityReference;
+    }
+
+    private Object copyValue(Object value, DbSession session) {
+        if (!needsCopy(value, session)) {
+            return value;
+        }
+        if (value instanceof Collection) {
+            Collection<Object> copy = value instanceof Set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+            for (Object item : (Collection<?>) value) {
+                copy.add(copyValue(item, session));
+            }
+            return copy;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copyValue(entry.getValue(), session));
+            }
+            return copy;
+        }
+        return session == null ? EntityReference.of(value) : ((EntityReference) value).load(session);
+    }
+
+    /**
+     * A copy of a data set's rows, with the metadata, definition and context of the original
+     */
+    private static class DetachedDataSet implements DataSet {
+
+        private final DataSetMetaData metaData;
+
+        private final DataSetDefinition definition;
+
+        private final EvaluationContext context;
+
+        private final List<DataSetRow> rows;
+
+        DetachedDataSet(DataSetMetaData metaData, DataSetDefinition definition, EvaluationContext context, List<DataSetRow> rows) {
+            this.metaData = metaData;
+            this.definition = definition;
+            this.context = context;
+            this.rows = rows;
+        }
+
+        @Override
+        public DataSetMetaData getMetaData() {
+            return metaData;
+        }
+
+        @Override
+        public DataSetDefinition getDefinition() {
+            return definition;
+        }
+
+        @Override
+        public EvaluationContext getContext() {
+            return context;
+        }
+
+        @Override
+        public Iterator<DataSetRow> iterator() {
+            return Collections.unmodifiableList(rows).iterator();
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds recently evaluated cohorts, data sets and reports, with one cache per REST resource, so that identical
+ * evaluations requested shortly after each other (typically by different users opening the same dashboard) are only
+ * done once.
+ * <p>
+ * Each cache is configured with the global properties reportingrest.cache.{resource}.ttlSeconds and
+ * reportingrest.cache.{resource}.maxEntries, and is disabled while ttlSeconds is 0 (the default).
+ */
+@Component
+public class EvaluationResultCache {
+
+    public static final String GLOBAL_PROPERTY_PREFIX = "reportingrest.cache.";
+
+    public static final String TTL_SECONDS_SUFFIX = ".ttlSeconds";
+
+    public static final String MAX_ENTRIES_SUFFIX = ".maxEntries";
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    private final ConcurrentMap<String, ExpiringLruCache<String, CachedEvaluation>> caches =
+            new ConcurrentHashMap<String, ExpiringLruCache<String, CachedEvaluation>>();
+
+    /**
+     * @param resourceName e.g. "cohort", "dataSet", "reportdata"
+     * @return the cache for this resource, or null if caching is disabled for it
+     */
+    public ExpiringLruCache<String, CachedEvaluation> getCache(String resourceName) {
+        int ttlSeconds = GlobalPropertyUtil.getInteger(GLOBAL_PROPERTY_PREFIX + resourceName + TTL_SECONDS_SUFFIX, 0);
+        if (ttlSeconds <= 0) {
+            caches.remove(resourceName);
+            return null;
+        }
+        int maxEntries = GlobalPropertyUtil.getInteger(GLOBAL_PROPERTY_PREFIX + resourceName + MAX_ENTRIES_SUFFIX, DEFAULT_MAX_ENTRIES);
+        if (maxEntries <= 0) {
+            maxEntries = DEFAULT_MAX_ENTRIES;
+        }
+
+        ExpiringLruCache<String, CachedEvaluation> cache = caches.get(resourceName);
+        if (cache == null || cache.getTtlMillis() != ttlSeconds * 1000L || cache.getMaxEntries() != maxEntries) {
+            // first use, or the global properties were changed, so we start over
+            cache = new ExpiringLruCache<String, CachedEvaluation>(maxEntries, ttlSeconds * 1000L);
+            caches.put(resourceName, cache);
+        }
+        return cache;
+    }
+
+    public void clear() {
+        for (ExpiringLruCache<String, CachedEvaluation> cache : caches.values()) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @param resourceName
+     */
+    public void clear(String resourceName) {
+        ExpiringLruCache<String, CachedEvaluation> cache = caches.get(resourceName);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return size, hits, misses and evictions, for each resource whose cache is in use
+     */
+    public Map<String, Map<String, Object>> getStatistics() {
+        Map<String, Map<String, Object>> statistics = new TreeMap<String, Map<String, Object>>();
+        for (Map.Entry<String, ExpiringLruCache<String, CachedEvaluation>> entry : caches.entrySet()) {
+            ExpiringLruCache<String, CachedEvaluation> cache = entry.getValue();
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("size", cache.size());
+            stats.put("maxEntries", cache.getMaxEntries());
+            stats.put("ttlSeconds", cache.getTtlMillis() / 1000);
+            stats.put("hits", cache.getHits());
+            stats.put("misses", cache.getMisses());
+            stats.put("evictions", cache.getEvictions());
+            statistics.put(entry.getKey(), stats);
+        }
+        return statistics;
+    }
+
+}
@@ -0,0 +1,221 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small thread-safe in-memory cache, whose entries expire a fixed time after they were added, and which evicts the
+ * least recently used entry once it holds maxEntries. It can also be bounded by the total weight of its values (e.g.
+ * their number of members), as given by a {@link Weigher}.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringLruCache<K, V> {
+
+    private final int maxEntries;
+
+    private final long ttlMillis;
+
+    private final long maxWeight;
+
+    private final Weigher<? super V> weigher;
+
+    private long totalWeight;
+
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries the maximum number of entries to hold
+     * @param ttlMillis how long after being added an entry expires
+     */
+    public ExpiringLruCache(final int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries to hold
+     * @param ttlMillis how long after being added an entry expires
+     * @param maxWeight the maximum total weight of the values to hold; a value that weighs more is not cached at all
+     * @param weigher gives the weight of each value, or null if the values are not weighed
+     */
+    public ExpiringLruCache(final int maxEntries, long ttlMillis, long maxWeight, Weigher<? super V> weigher) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        // access-order, so that iteration starts from the least recently used entry
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > ExpiringLruCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    totalWeight -= eldest.getValue().weight;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param key
+     * @return the cached value, or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.isExpired(now())) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        long weight = weigher == null ? 0 : weigher.weigh(value);
+        if (weight > maxWeight) {
+            remove(key);
+            return;
+        }
+        Entry<V> replaced = entries.put(key, new Entry<V>(value, now() + ttlMillis, weight));
+        totalWeight += weight - (replaced == null ? 0 : replaced.weight);
+        // access-order, so this starts from the least recently used entry, and ends with the one just added
+        for (Iterator<Entry<V>> i = entries.values().iterator(); totalWeight > maxWeight && i.hasNext(); ) {
+            totalWeight -= i.next().weight;
+            i.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed == null) {
+            return null;
+        }
+        totalWeight -= removed.weight;
+        return removed.value;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * Drops all expired entries. (Expired entries are also dropped lazily, when they are looked up.)
+     */
+    public synchronized void removeExpired() {
+        long now = now();
+        for (Iterator<Entry<V>> i = entries.values().iterator(); i.hasNext(); ) {
+            Entry<V> entry = i.next();
+            if (entry.isExpired(now)) {
+                totalWeight -= entry.weight;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @param key
+     * @return the number of milliseconds until the entry for key expires, or 0 if there is none
+     */
+    public synchronized long getMillisToLive(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry == null ? 0 : Math.max(0, entry.expiresAt - now());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of the values held, or 0 if they are not weighed
+     */
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Gives the weight of the values of an {@link ExpiringLruCache} that is bounded by total weight
+     *
+     * @param <V> value type
+     */
+    public interface Weigher<V> {
+
+        long weigh(V value);
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long expiresAt;
+
+        private final long weight;
+
+        Entry(V value, long expiresAt, long weight) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+}
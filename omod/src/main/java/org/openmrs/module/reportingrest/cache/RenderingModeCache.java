@@ -0,0 +1,87 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.renderer.RenderingMode;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the rendering modes of report definitions, by report definition uuid, since working them out means going
+ * through every renderer and every report design of the definition.
+ * <p>
+ * Cleared when a report design is saved or purged through the reportDesign resource (since a design may also have
+ * moved between definitions), and otherwise kept for reportingrest.cache.renderingModes.ttlSeconds (0 disables it), to
+ * pick up designs changed elsewhere.
+ */
+@Component
+public class RenderingModeCache {
+
+    public static final String GP_TTL_SECONDS = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "renderingModes"
+            + EvaluationResultCache.TTL_SECONDS_SUFFIX;
+
+    public static final String GP_MAX_ENTRIES = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "renderingModes"
+            + EvaluationResultCache.MAX_ENTRIES_SUFFIX;
+
+    public static final int DEFAULT_TTL_SECONDS = 300;
+
+    public static final int DEFAULT_MAX_ENTRIES = 200;
+
+    private ExpiringLruCache<String, List<RenderingMode>> cache;
+
+    /**
+     * @param definition
+     * @return the rendering modes of definition, which should not be modified
+     */
+    public List<RenderingMode> getRenderingModes(ReportDefinition definition) {
+        ExpiringLruCache<String, List<RenderingMode>> cache = getCache();
+        if (cache == null || definition.getUuid() == null) {
+            return Context.getService(ReportService.class).getRenderingModes(definition);
+        }
+        List<RenderingMode> renderingModes = cache.get(definition.getUuid());
+        if (renderingModes == null) {
+            renderingModes = Collections.unmodifiableList(new ArrayList<RenderingMode>(
+                    Context.getService(ReportService.class).getRenderingModes(definition)));
+            cache.put(definition.getUuid(), renderingModes);
+        }
+        return renderingModes;
+    }
+
+    private synchronized ExpiringLruCache<String, List<RenderingMode>> getCache() {
+        int ttlSeconds = GlobalPropertyUtil.getInteger(GP_TTL_SECONDS, DEFAULT_TTL_SECONDS);
+        if (ttlSeconds <= 0) {
+            cache = null;
+            return null;
+        }
+        int maxEntries = GlobalPropertyUtil.getInteger(GP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+        if (maxEntries <= 0) {
+            maxEntries = DEFAULT_MAX_ENTRIES;
+        }
+        if (cache == null || cache.getTtlMillis() != ttlSeconds * 1000L || cache.getMaxEntries() != maxEntries) {
+            // first use, or the global properties were changed, so we start over
+            cache = new ExpiringLruCache<String, List<RenderingMode>>(maxEntries, ttlSeconds * 1000L);
+        }
+        return cache;
+    }
+
+    public synchronized void clear() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+}
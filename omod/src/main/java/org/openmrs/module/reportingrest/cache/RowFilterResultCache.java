@@ -0,0 +1,154 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openmrs.module.reporting.cohort.definition.DefinitionLibraryCohortDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reportingrest.SimpleIdSet;
+import org.openmrs.module.reportingrest.util.GlobalPropertyUtil;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the member ids of recently evaluated ad hoc query row filters, separately for each user, so that when a user
+ * changes one row filter and evaluates again, only that one is evaluated.
+ * <p>
+ * Member ids are kept as bits (see {@link SimpleIdSet}), and the cache is bounded in total, whatever the number of
+ * users, both by number of entries and by the memory the bits take up. A set of bits takes up memory in proportion to
+ * its highest id, however few members it has, so that is what is counted. It is configured with the global properties
+ * reportingrest.cache.adhocRowFilter.ttlSeconds (0, the default, disables it), reportingrest.cache.adhocRowFilter.maxEntries
+ * and reportingrest.cache.adhocRowFilter.maxMegabytes.
+ */
+@Component
+public class RowFilterResultCache {
+
+    public static final String GP_TTL_SECONDS = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "adhocRowFilter"
+            + EvaluationResultCache.TTL_SECONDS_SUFFIX;
+
+    public static final String GP_MAX_ENTRIES = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "adhocRowFilter"
+            + EvaluationResultCache.MAX_ENTRIES_SUFFIX;
+
+    public static final String GP_MAX_MEGABYTES = EvaluationResultCache.GLOBAL_PROPERTY_PREFIX + "adhocRowFilter.maxMegabytes";
+
+    public static final int DEFAULT_TTL_SECONDS = 0;
+
+    public static final int DEFAULT_MAX_ENTRIES = 500;
+
+    public static final int DEFAULT_MAX_MEGABYTES = 64;
+
+    private static final ExpiringLruCache.Weigher<SimpleIdSet> MEMORY_BYTES = new ExpiringLruCache.Weigher<SimpleIdSet>() {
+
+        @Override
+        public long weigh(SimpleIdSet value) {
+            return value.getMemoryBytes();
+        }
+    };
+
+    private ExpiringLruCache<String, SimpleIdSet> cache;
+
+    /**
+     * @param rowFilter a row filter, mapped from the ad hoc query's parameters
+     * @param context the context the row filter is evaluated in
+     * @return the key to cache the row filter's result under, or null if it should not be cached
+     */
+    public static String buildKey(Mapped<? extends DefinitionLibraryCohortDefinition> rowFilter, EvaluationContext context) {
+        if (context.getBaseCohort() != null) {
+            // evaluated on part of the patients, e.g. for a preview
+            return null;
+        }
+        DefinitionLibraryCohortDefinition definition = rowFilter.getParameterizable();
+        StringBuilder canonical = new StringBuilder();
+        canonical.append("parameterValues=").append(EvaluationCacheKey.canonicalize(definition.getParameterValues()));
+        canonical.append("|mappings=").append(EvaluationCacheKey.canonicalize(rowFilter.getParameterMappings()));
+        canonical.append("|queryParameters=").append(EvaluationCacheKey.canonicalize(context.getParameterValues()));
+        canonical.append("|limit=").append(context.getLimit());
+        return definition.getDefinitionKey() + ":" + DigestUtils.sha256Hex(canonical.toString());
+    }
+
+    /**
+     * @return whether row filter results are cached at all
+     */
+    public boolean isEnabled() {
+        return getCache() != null;
+    }
+
+    /**
+     * @param userUuid
+     * @param key as built by {@link #buildKey(Mapped, EvaluationContext)}
+     * @return the member ids this user's row filter evaluated to, or null if they are not cached
+     */
+    public Set<Integer> get(String userUuid, String key) {
+        ExpiringLruCache<String, SimpleIdSet> cache = getCache();
+        SimpleIdSet memberIds = cache == null ? null : cache.get(userUuid + "|" + key);
+        return memberIds == null ? null : Collections.unmodifiableSet(memberIds.getMemberIds());
+    }
+
+    /**
+     * @param userUuid
+     * @param key as built by {@link #buildKey(Mapped, EvaluationContext)}
+     * @param memberIds what this user's row filter evaluated to
+     */
+    public void put(String userUuid, String key, Set<Integer> memberIds) {
+        ExpiringLruCache<String, SimpleIdSet> cache = getCache();
+        if (cache != null) {
+            cache.put(userUuid + "|" + key, new SimpleIdSet(memberIds));
+        }
+    }
+
+    private synchronized ExpiringLruCache<String, SimpleIdSet> getCache() {
+        int ttlSeconds = GlobalPropertyUtil.getInteger(GP_TTL_SECONDS, DEFAULT_TTL_SECONDS);
+        if (ttlSeconds <= 0) {
+            cache = null;
+            return null;
+        }
+        int maxEntries = GlobalPropertyUtil.getInteger(GP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+        if (maxEntries <= 0) {
+            maxEntries = DEFAULT_MAX_ENTRIES;
+        }
+        int maxMegabytes = GlobalPropertyUtil.getInteger(GP_MAX_MEGABYTES, DEFAULT_MAX_MEGABYTES);
+        if (maxMegabytes <= 0) {
+            maxMegabytes = DEFAULT_MAX_MEGABYTES;
+        }
+        long maxBytes = maxMegabytes * 1024L * 1024L;
+        if (cache == null || cache.getTtlMillis() != ttlSeconds * 1000L || cache.getMaxEntries() != maxEntries
+                || cache.getMaxWeight() != maxBytes) {
+            // first use, or the global properties were changed, so we start over
+            cache = new ExpiringLruCache<String, SimpleIdSet>(maxEntries, ttlSeconds * 1000L, maxBytes, MEMORY_BYTES);
+        }
+        return cache;
+    }
+
+    public synchronized void clear() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return size, bytes taken up by members, hits, misses and evictions
+     */
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("size", cache == null ? 0 : cache.size());
+        stats.put("bytes", cache == null ? 0 : cache.getTotalWeight());
+        stats.put("ttlSeconds", cache == null ? 0 : cache.getTtlMillis() / 1000);
+        stats.put("hits", cache == null ? 0 : cache.getHits());
+        stats.put("misses", cache == null ? 0 : cache.getMisses());
+        stats.put("evictions", cache == null ? 0 : cache.getEvictions());
+        return stats;
+    }
+
+}
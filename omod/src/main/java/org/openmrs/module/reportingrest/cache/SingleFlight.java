@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller does the work, and callers that arrive while it is
+ * still in progress wait for it and get the same result (or exception), instead of repeating the work.
+ * <p>
+ * Nothing is kept once the work is done, so a call that starts after the previous one finished does the work again.
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * @param key identifies the work
+     * @param work is only called if no call with an equal key is in progress
+     * @return the result of work, or of the in-progress call with the same key
+     * @throws Exception whatever work threw
+     */
+    public V execute(K key, Callable<V> work) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(work);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            return getResult(existing);
+        }
+        try {
+            // run in this thread, so the work sees this thread's OpenMRS session and user
+            task.run();
+        }
+        finally {
+            inFlight.remove(key, task);
+        }
+        return getResult(task);
+    }
+
+    /**
+     * @return the number of calls currently in progress
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private V getResult(FutureTask<V> task) throws Exception {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an identical call to finish", ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+}
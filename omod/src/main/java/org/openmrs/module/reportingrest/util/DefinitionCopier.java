@@ -0,0 +1,234 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.util;
+
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.reporting.evaluation.Definition;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Makes deep copies of definitions, in memory, which is much cheaper than deserializing them again.
+ * <p>
+ * Definitions (including nested ones), collections, maps, arrays and dates are copied. Other OpenMRS objects (concepts,
+ * locations, users...) are persistent, and possibly Hibernate proxies, so they are shared, unless a {@link Replacer}
+ * is given, and so are JDK classes like String and Integer. Anything else is copied field by field, which requires a
+ * no-argument constructor.
+ */
+public class DefinitionCopier {
+
+    private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+    private final Replacer replacer;
+
+    private DefinitionCopier(Replacer replacer) {
+        this.replacer = replacer;
+    }
+
+    /**
+     * @param definition a definition, or another object built the same way, e.g. an evaluation context
+     * @return a copy of definition that shares no mutable state with it
+     * @throws IllegalArgumentException if definition contains something that cannot be copied
+     */
+    public static <T> T copy(T definition) {
+        return copy(definition, null);
+    }
+
+    /**
+     * @param definition a definition, or another object built the same way, e.g. an evaluation context
+     * @param replacer may replace objects of definition in the copy, e.g. persistent objects by references to them
+     * @return a copy of definition that shares no mutable state with it
+     * @throws IllegalArgumentException if definition contains something that cannot be copied
+     */
+    public static <T> T copy(T definition, Replacer replacer) {
+        return (T) new DefinitionCopier(replacer).copyObject(definition);
+    }
+
+    private Object copyObject(Object original) {
+        if (original == null) {
+            return null;
+        }
+        Object copy = copies.get(original);
+        if (copy != null) {
+            return copy;
+        }
+        if (replacer != null) {
+            copy = replacer.replace(original);
+            if (copy != original) {
+                copies.put(original, copy);
+                return copy;
+            }
+        }
+        Class<?> type = original.getClass();
+        if (type.isArray()) {
+            return copyArray(original);
+        }
+        if (original instanceof Date) {
+            copy = ((Date) original).clone();
+            copies.put(original, copy);
+            return copy;
+        }
+        if (original instanceof Collection) {
+            return copyCollection((Collection<?>) original);
+        }
+        if (original instanceof Map) {
+            return copyMap((Map<?, ?>) original);
+        }
+        if (isShared(original)) {
+            return original;
+        }
+        return copyFields(original);
+    }
+
+    private boolean isShared(Object original) {
+        if (original instanceof Definition) {
+            return false;
+        }
+        if (original instanceof OpenmrsObject || original instanceof Enum || original instanceof Class) {
+            return true;
+        }
+        String className = original.getClass().getName();
+        return className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("org.hibernate.");
+    }
+
+    private Object copyArray(Object original) {
+        int length = Array.getLength(original);
+        Object copy = Array.newInstance(original.getClass().getComponentType(), length);
+        copies.put(original, copy);
+        if (original.getClass().getComponentType().isPrimitive()) {
+            System.arraycopy(original, 0, copy, 0, length);
+        }
+        else {
+            for (int i = 0; i < length; ++i) {
+                Array.set(copy, i, copyObject(Array.get(original, i)));
+            }
+        }
+        return copy;
+    }
+
+    private Collection<Object> copyCollection(Collection<?> original) {
+        Collection<Object> copy;
+        if (original instanceof SortedSet) {
+            copy = new TreeSet<Object>(((SortedSet<Object>) original).comparator());
+        }
+        else {
+            copy = (Collection<Object>) newStandardInstance(original.getClass());
+            if (copy == null) {
+                // e.g. an unmodifiable or Hibernate collection
+                copy = original instanceof Set ? new LinkedHashSet<Object>() : new ArrayList<Object>();
+            }
+        }
+        copies.put(original, copy);
+        for (Object item : original) {
+            copy.add(copyObject(item));
+        }
+        return copy;
+    }
+
+    private Map<Object, Object> copyMap(Map<?, ?> original) {
+        Map<Object, Object> copy;
+        if (original instanceof SortedMap) {
+            copy = new TreeMap<Object, Object>(((SortedMap<Object, Object>) original).comparator());
+        }
+        else {
+            copy = (Map<Object, Object>) newStandardInstance(original.getClass());
+            if (copy == null) {
+                copy = new LinkedHashMap<Object, Object>();
+            }
+        }
+        copies.put(original, copy);
+        for (Map.Entry<?, ?> entry : original.entrySet()) {
+            copy.put(copyObject(entry.getKey()), copyObject(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * @return a new instance of a java.util collection or map type, or null if it has no public no-argument constructor
+     */
+    private Object newStandardInstance(Class<?> type) {
+        if (!type.getName().startsWith("java.util.")) {
+            return null;
+        }
+        try {
+            return type.getConstructor().newInstance();
+        }
+        catch (NoSuchMethodException ex) {
+            return null;
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("Cannot copy a " + type.getName(), ex);
+        }
+    }
+
+    private Object copyFields(Object original) {
+        Class<?> type = original.getClass();
+        Object copy;
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            copy = constructor.newInstance();
+        }
+        catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("Cannot copy a " + type.getName() + ", since it has no no-argument constructor", ex);
+        }
+        copies.put(original, copy);
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                }
+                catch (RuntimeException ex) {
+                    // on newer JVMs, fields of JDK classes cannot be made accessible
+                    throw new IllegalArgumentException("Cannot copy " + c.getName() + "." + field.getName(), ex);
+                }
+                try {
+                    Object value = field.get(original);
+                    field.set(copy, field.getType().isPrimitive() ? value : copyObject(value));
+                }
+                catch (IllegalAccessException ex) {
+                    throw new IllegalArgumentException("Cannot copy " + c.getName() + "." + field.getName(), ex);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Decides what stands in for an object in a copy
+     */
+    public interface Replacer {
+
+        /**
+         * @param original an object in what is being copied
+         * @return what stands in for original in the copy, or original itself to copy (or share) it as usual
+         */
+        Object replace(Object original);
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads this module's global properties, falling back to a default if they are missing or invalid.
+ * <p>
+ * Some are read on every request (e.g. to configure the caches), so values are kept in memory. A listener on the
+ * AdministrationService forgets a value when it is saved or deleted, and again when that transaction completes, in
+ * case it was rolled back. Values changed without going through the AdministrationService (e.g. in SQL) are picked up
+ * after at most {@link #MAX_AGE_MILLIS}.
+ */
+public class GlobalPropertyUtil {
+
+    private static final String PREFIX = "reportingrest.";
+
+    private static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    private static Log log = LogFactory.getLog(GlobalPropertyUtil.class);
+
+    private static final ConcurrentMap<String, CachedValue> values = new ConcurrentHashMap<String, CachedValue>();
+
+    /**
+     * Incremented whenever a value is forgotten, so that a value read from the database just before is not kept
+     */
+    private static final AtomicLong changes = new AtomicLong();
+
+    private static volatile AdministrationService listenedTo;
+
+    public static int getInteger(String propertyName, int defaultValue) {
+        String value = getValue(propertyName);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex) {
+            log.warn("Global property " + propertyName + " should be an integer, but is: " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static String getValue(String propertyName) {
+        AdministrationService administrationService = Context.getAdministrationService();
+        if (!propertyName.startsWith(PREFIX)) {
+            // the listener only hears about our own global properties
+            return administrationService.getGlobalProperty(propertyName);
+        }
+        listenTo(administrationService);
+
+        long now = System.currentTimeMillis();
+        CachedValue cached = values.get(propertyName);
+        if (cached == null || now >= cached.expiresAt) {
+            long changesBefore = changes.get();
+            cached = new CachedValue(administrationService.getGlobalProperty(propertyName), now + MAX_AGE_MILLIS);
+            if (changes.get() == changesBefore) {
+                values.put(propertyName, cached);
+            }
+        }
+        return cached.value;
+    }
+
+    /**
+     * Registers the listener with administrationService, unless it already is (the service is replaced when the
+     * application context is refreshed, e.g. when modules are started)
+     */
+    private static synchronized void listenTo(AdministrationService administrationService) {
+        if (listenedTo != administrationService) {
+            administrationService.addGlobalPropertyListener(new Listener());
+            listenedTo = administrationService;
+            forgetAll();
+        }
+    }
+
+    private static void forget(final String propertyName) {
+        changes.incrementAndGet();
+        values.remove(propertyName);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+
+                @Override
+                public void afterCompletion(int status) {
+                    changes.incrementAndGet();
+                    values.remove(propertyName);
+                }
+            });
+        }
+    }
+
+    private static void forgetAll() {
+        changes.incrementAndGet();
+        values.clear();
+    }
+
+    private static class Listener implements GlobalPropertyListener {
+
+        @Override
+        public boolean supportsPropertyName(String propertyName) {
+            return propertyName != null && propertyName.startsWith(PREFIX);
+        }
+
+        @Override
+        public void globalPropertyChanged(GlobalProperty newValue) {
+            forget(newValue.getProperty());
+        }
+
+        @Override
+        public void globalPropertyDeleted(String propertyName) {
+            forget(propertyName);
+        }
+    }
+
+    private static class CachedValue {
+
+        private final String value;
+
+        private final long expiresAt;
+
+        CachedValue(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
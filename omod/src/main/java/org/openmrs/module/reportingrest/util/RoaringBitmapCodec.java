@@ -0,0 +1,207 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Encodes sets of (non-negative) ids, like cohort member ids, as base64 strings in the portable serialization format of
+ * Roaring bitmaps (https://github.com/RoaringBitmap/RoaringFormatSpec), so clients can read them with any Roaring
+ * library, and do set algebra locally.
+ * <p>
+ * Ids are grouped by their high 16 bits. Each group is stored as a sorted array of 16-bit values if it has at most 4096
+ * members, or else as a 65536-bit bitmap. Encoding never produces run containers, but decoding accepts them.
+ */
+public class RoaringBitmapCodec {
+
+    private static final int SERIAL_COOKIE_NO_RUNCONTAINER = 12346;
+
+    private static final int SERIAL_COOKIE = 12347;
+
+    private static final int NO_OFFSET_THRESHOLD = 4;
+
+    private static final int MAX_ARRAY_CONTAINER_SIZE = 4096;
+
+    private static final int BITMAP_CONTAINER_LONGS = 1024;
+
+    private RoaringBitmapCodec() {
+    }
+
+    /**
+     * @param ids must not contain negative numbers or null
+     * @return base64 of the Roaring serialization of ids
+     */
+    public static String encode(Collection<Integer> ids) {
+        List<Integer> sorted = new ArrayList<Integer>(ids);
+        Collections.sort(sorted);
+        if (!sorted.isEmpty() && sorted.get(0) < 0) {
+            throw new IllegalArgumentException("Cannot encode negative ids: " + sorted.get(0));
+        }
+
+        // group by high 16 bits
+        List<Integer> keys = new ArrayList<Integer>();
+        List<int[]> groups = new ArrayList<int[]>();
+        int from = 0;
+        while (from < sorted.size()) {
+            int key = sorted.get(from) >>> 16;
+            int to = from;
+            while (to < sorted.size() && sorted.get(to) >>> 16 == key) {
+                ++to;
+            }
+            int[] lows = new int[to - from];
+            for (int i = from; i < to; ++i) {
+                lows[i - from] = sorted.get(i) & 0xFFFF;
+            }
+            keys.add(key);
+            groups.add(lows);
+            from = to;
+        }
+
+        int headerSize = 8 + 4 * groups.size() + 4 * groups.size();
+        int size = headerSize;
+        for (int[] lows : groups) {
+            size += containerSize(lows.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(SERIAL_COOKIE_NO_RUNCONTAINER);
+        buffer.putInt(groups.size());
+        for (int i = 0; i < groups.size(); ++i) {
+            buffer.putShort((short) keys.get(i).intValue());
+            buffer.putShort((short) (groups.get(i).length - 1));
+        }
+        int offset = headerSize;
+        for (int[] lows : groups) {
+            buffer.putInt(offset);
+            offset += containerSize(lows.length);
+        }
+        for (int[] lows : groups) {
+            if (lows.length <= MAX_ARRAY_CONTAINER_SIZE) {
+                for (int low : lows) {
+                    buffer.putShort((short) low);
+                }
+            }
+            else {
+                long[] bits = new long[BITMAP_CONTAINER_LONGS];
+                for (int low : lows) {
+                    bits[low >>> 6] |= 1L << (low & 63);
+                }
+                for (long word : bits) {
+                    buffer.putLong(word);
+                }
+            }
+        }
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * @param base64 standard or url-safe base64, of a Roaring bitmap serialization
+     * @return the ids, in ascending order
+     * @throws IllegalArgumentException if this is not a valid serialized bitmap
+     */
+    public static Set<Integer> decode(String base64) {
+        byte[] bytes;
+        try {
+            // '+' arrives as ' ' if the client didn't url-encode a query parameter
+            String normalized = base64.trim().replace(' ', '+').replace('-', '+').replace('_', '/');
+            bytes = Base64.getDecoder().decode(normalized);
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid base64 in bitmap", ex);
+        }
+
+        try {
+            return decode(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Truncated bitmap", ex);
+        }
+    }
+
+    private static Set<Integer> decode(ByteBuffer buffer) {
+        int cookie = buffer.getInt();
+        int containers;
+        byte[] runFlags = null;
+        boolean hasOffsets;
+        if (cookie == SERIAL_COOKIE_NO_RUNCONTAINER) {
+            containers = buffer.getInt();
+            hasOffsets = true;
+        }
+        else if ((cookie & 0xFFFF) == SERIAL_COOKIE) {
+            containers = (cookie >>> 16) + 1;
+            runFlags = new byte[(containers + 7) / 8];
+            buffer.get(runFlags);
+            hasOffsets = containers >= NO_OFFSET_THRESHOLD;
+        }
+        else {
+            throw new IllegalArgumentException("Not a Roaring bitmap (cookie " + cookie + ")");
+        }
+        if (containers < 0 || containers > 65536) {
+            throw new IllegalArgumentException("Invalid number of containers: " + containers);
+        }
+
+        int[] keys = new int[containers];
+        int[] cardinalities = new int[containers];
+        for (int i = 0; i < containers; ++i) {
+            keys[i] = buffer.getShort() & 0xFFFF;
+            cardinalities[i] = (buffer.getShort() & 0xFFFF) + 1;
+        }
+        if (hasOffsets) {
+            // containers are stored consecutively, so we don't need the offsets
+            buffer.position(buffer.position() + 4 * containers);
+        }
+
+        Set<Integer> ids = new LinkedHashSet<Integer>();
+        for (int i = 0; i < containers; ++i) {
+            int high = keys[i] << 16;
+            boolean isRun = runFlags != null && (runFlags[i / 8] & (1 << (i % 8))) != 0;
+            if (isRun) {
+                int runs = buffer.getShort() & 0xFFFF;
+                for (int r = 0; r < runs; ++r) {
+                    int start = buffer.getShort() & 0xFFFF;
+                    int length = buffer.getShort() & 0xFFFF;
+                    for (int low = start; low <= start + length; ++low) {
+                        ids.add(high | low);
+                    }
+                }
+            }
+            else if (cardinalities[i] <= MAX_ARRAY_CONTAINER_SIZE) {
+                for (int j = 0; j < cardinalities[i]; ++j) {
+                    ids.add(high | (buffer.getShort() & 0xFFFF));
+                }
+            }
+            else {
+                for (int word = 0; word < BITMAP_CONTAINER_LONGS; ++word) {
+                    long bits = buffer.getLong();
+                    while (bits != 0) {
+                        int bit = Long.numberOfTrailingZeros(bits);
+                        ids.add(high | (word << 6) | bit);
+                        bits &= bits - 1;
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static int containerSize(int cardinality) {
+        return cardinality <= MAX_ARRAY_CONTAINER_SIZE ? 2 * cardinality : 8 * BITMAP_CONTAINER_LONGS;
+    }
+
+}
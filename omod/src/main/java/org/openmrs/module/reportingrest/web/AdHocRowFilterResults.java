@@ -28,6 +28,12 @@ public class AdHocRowFilterResults {
     @JsonProperty
     private List<IdSet<?>> individualResults;
 
+    /**
+     * For each of individualResults, whether it came from the cache of recently evaluated row filters
+     */
+    @JsonProperty
+    private List<Boolean> individualResultsFromCache;
+
     public IdSet<?> getResult() {
         return result;
     }
@@ -44,11 +50,25 @@ public class AdHocRowFilterResults {
         this.individualResults = individualResults;
     }
 
+    public List<Boolean> getIndividualResultsFromCache() {
+        return individualResultsFromCache;
+    }
+
+    public void setIndividualResultsFromCache(List<Boolean> individualResultsFromCache) {
+        this.individualResultsFromCache = individualResultsFromCache;
+    }
+
     public void addResult(IdSet result) {
+        addResult(result, false);
+    }
+
+    public void addResult(IdSet result, boolean fromCache) {
         if (individualResults == null) {
             individualResults = new ArrayList<IdSet<?>>();
+            individualResultsFromCache = new ArrayList<Boolean>();
         }
         individualResults.add(result);
+        individualResultsFromCache.add(fromCache);
     }
 
 }
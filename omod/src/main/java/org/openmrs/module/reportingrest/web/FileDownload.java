@@ -0,0 +1,205 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.web;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sends a file as a binary HTTP response, straight from disk, rather than reading it into memory. Supports conditional
+ * GETs (ETag and Last-Modified, answered with 304 Not Modified) and a single byte range (answered with 206 Partial
+ * Content), so that interrupted downloads can be resumed.
+ * <p>
+ * Content that is already in memory can be sent the same way.
+ */
+public class FileDownload {
+
+    private static final Pattern SINGLE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    private final File file;
+
+    private final byte[] content;
+
+    private final long length;
+
+    private final long lastModified;
+
+    private final String fileName;
+
+    private final String contentType;
+
+    private final String etag;
+
+    /**
+     * @param file
+     * @param fileName suggested to the client, in Content-Disposition
+     * @param contentType
+     * @param version identifies this version of the file's content, for the ETag
+     */
+    public FileDownload(File file, String fileName, String contentType, String version) {
+        this(file, null, file.length(), file.lastModified(), fileName, contentType, version);
+    }
+
+    /**
+     * @param content
+     * @param lastModified in milliseconds
+     * @param fileName suggested to the client, in Content-Disposition
+     * @param contentType
+     * @param version identifies this version of the content, for the ETag
+     */
+    public FileDownload(byte[] content, long lastModified, String fileName, String contentType, String version) {
+        this(null, content, content.length, lastModified, fileName, contentType, version);
+    }
+
+    private FileDownload(File file, byte[] content, long length, long lastModified, String fileName, String contentType,
+                         String version) {
+        this.file = file;
+        this.content = content;
+        this.length = length;
+        // HTTP dates have a resolution of seconds
+        this.lastModified = lastModified / 1000 * 1000;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.etag = "\"" + version + "-" + length + "-" + lastModified + "\"";
+    }
+
+    public void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        if (isNotModified(request)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && isRangeApplicable(request)) {
+            Matcher matcher = SINGLE_RANGE.matcher(range.trim());
+            if (matcher.matches() && (matcher.group(1).length() > 0 || matcher.group(2).length() > 0)) {
+                if (matcher.group(1).length() == 0) {
+                    // suffix range, i.e. the last N bytes
+                    start = Math.max(0, length - parseLong(matcher.group(2)));
+                }
+                else {
+                    start = parseLong(matcher.group(1));
+                    if (matcher.group(2).length() > 0) {
+                        end = Math.min(end, parseLong(matcher.group(2)));
+                    }
+                }
+                if (start >= length || start > end) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+            // anything else, e.g. multiple ranges, is ignored, and we send the whole file
+        }
+
+        long count = end - start + 1;
+        response.setContentType(contentType);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName.replace("\"", "") + "\"");
+        response.setHeader("Content-Length", Long.toString(count));
+        if ("HEAD".equalsIgnoreCase(request.getMethod()) || count <= 0) {
+            return;
+        }
+
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        if (content != null) {
+            out.write(ByteBuffer.wrap(content, (int) start, (int) count));
+        }
+        else {
+            FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                // transferTo may send fewer bytes than asked for, and is zero-copy when the container allows it
+                long position = start;
+                while (position <= end) {
+                    long sent = in.transferTo(position, end - position + 1, out);
+                    if (sent <= 0) {
+                        break;
+                    }
+                    position += sent;
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        response.flushBuffer();
+    }
+
+    private boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch);
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * A Range is only honored if there is no If-Range, or if If-Range shows that the client's partial copy is of this
+     * version of the file
+     */
+    private boolean isRangeApplicable(HttpServletRequest request) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+            return ifRange.trim().equals(etag);
+        }
+        long ifRangeDate = getDateHeader(request, "If-Range");
+        return ifRangeDate >= 0 && lastModified <= ifRangeDate;
+    }
+
+    private boolean matchesEtag(String header) {
+        for (String candidate : header.split(",")) {
+            String trimmed = candidate.trim();
+            if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        }
+        catch (IllegalArgumentException ex) {
+            // not a date
+            return -1;
+        }
+    }
+
+    private long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException ex) {
+            // too many digits to be a position in this file
+            return Long.MAX_VALUE;
+        }
+    }
+
+}
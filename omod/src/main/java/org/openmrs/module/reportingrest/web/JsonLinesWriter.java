@@ -0,0 +1,88 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.web;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes one JSON document per line (newline-delimited JSON) straight to the servlet response, so that large results
+ * can be sent to the client without first building them up in memory.
+ */
+public class JsonLinesWriter implements Closeable {
+
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+
+    public static final String STREAM_PARAMETER = "stream";
+
+    private final ObjectMapper jackson;
+
+    private final Writer writer;
+
+    public JsonLinesWriter(HttpServletResponse response) throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        this.writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        this.jackson = new ObjectMapper();
+        // we write many documents to the same writer, so jackson must not close it after each one
+        this.jackson.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+
+    /**
+     * @param context
+     * @return true if the client asked for a streamed response, either with ?stream=true or by accepting
+     * application/x-ndjson
+     */
+    public static boolean isRequested(RequestContext context) {
+        HttpServletRequest request = context.getRequest();
+        if (request == null) {
+            return false;
+        }
+        if ("true".equalsIgnoreCase(request.getParameter(STREAM_PARAMETER))) {
+            return true;
+        }
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains(CONTENT_TYPE);
+    }
+
+    /**
+     * Writes a single line
+     * @param document should already be converted to simple types (maps, lists, strings, numbers)
+     * @throws IOException
+     */
+    public void write(Object document) throws IOException {
+        jackson.writeValue(writer, document);
+        writer.write('\n');
+    }
+
+    /**
+     * Sends what was written so far to the client
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.flush();
+    }
+
+}
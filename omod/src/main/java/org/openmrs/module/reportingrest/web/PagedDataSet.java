@@ -0,0 +1,124 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.web;
+
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetMetaData;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only window (startIndex, limit) over the rows of another {@link DataSet}. Rows outside the window are skipped
+ * while iterating, and are never copied.
+ */
+public class PagedDataSet implements DataSet {
+
+    private DataSet delegate;
+
+    private int startIndex;
+
+    private int limit;
+
+    private Integer totalCount;
+
+    /**
+     * @param delegate the full data set
+     * @param startIndex number of rows of delegate to skip
+     * @param limit maximum number of rows to return
+     */
+    public PagedDataSet(DataSet delegate, int startIndex, int limit) {
+        this(delegate, startIndex, limit, null);
+    }
+
+    /**
+     * @param delegate the data set
+     * @param startIndex number of rows of delegate to skip
+     * @param limit maximum number of rows to return
+     * @param totalCount the total number of rows, if the delegate was already restricted to this page during evaluation
+     */
+    public PagedDataSet(DataSet delegate, int startIndex, int limit, Integer totalCount) {
+        this.delegate = delegate;
+        this.startIndex = startIndex;
+        this.limit = limit;
+        this.totalCount = totalCount;
+    }
+
+    /**
+     * @return the number of rows in the full data set (not just in this page)
+     */
+    public int getTotalCount() {
+        if (totalCount == null) {
+            int count = 0;
+            for (Iterator<DataSetRow> i = delegate.iterator(); i.hasNext(); i.next()) {
+                ++count;
+            }
+            totalCount = count;
+        }
+        return totalCount;
+    }
+
+    /**
+     * @return true if there are rows after this page
+     */
+    public boolean hasMoreResults() {
+        return getTotalCount() > startIndex + limit;
+    }
+
+    @Override
+    public DataSetMetaData getMetaData() {
+        return delegate.getMetaData();
+    }
+
+    @Override
+    public DataSetDefinition getDefinition() {
+        return delegate.getDefinition();
+    }
+
+    @Override
+    public EvaluationContext getContext() {
+        return delegate.getContext();
+    }
+
+    @Override
+    public Iterator<DataSetRow> iterator() {
+        final Iterator<DataSetRow> rows = delegate.iterator();
+        for (int i = 0; i < startIndex && rows.hasNext(); ++i) {
+            rows.next();
+        }
+        return new Iterator<DataSetRow>() {
+
+            private int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return returned < limit && rows.hasNext();
+            }
+
+            @Override
+            public DataSetRow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ++returned;
+                return rows.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+}
@@ -10,6 +10,7 @@
 package org.openmrs.module.reportingrest.web.controller;
 
 import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.dataset.DataSet;
@@ -23,9 +24,20 @@ import org.openmrs.module.reporting.report.ReportRequest;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.renderer.RenderingMode;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.async.EvaluationJob;
+import org.openmrs.module.reportingrest.async.EvaluationJobManager;
+import org.openmrs.module.reportingrest.cache.CachedEvaluation;
+import org.openmrs.module.reportingrest.cache.DefinitionCache;
+import org.openmrs.module.reportingrest.cache.EvaluationCacheKey;
+import org.openmrs.module.reportingrest.cache.EvaluationDetacher;
+import org.openmrs.module.reportingrest.cache.EvaluationResultCache;
+import org.openmrs.module.reportingrest.cache.ExpiringLruCache;
+import org.openmrs.module.reportingrest.cache.RowFilterResultCache;
+import org.openmrs.module.reportingrest.web.FileDownload;
 import org.openmrs.module.reportingrest.web.ReportFile;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.ConversionUtil;
+import org.openmrs.module.webservices.rest.web.Hyperlink;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.RestUtil;
@@ -33,6 +45,8 @@ import org.openmrs.module.webservices.rest.web.representation.Representation;
 import org.openmrs.module.webservices.rest.web.response.GenericRestException;
 import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.MainResourceController;
+import org.openmrs.util.OpenmrsUtil;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -42,11 +56,22 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Controller for {@link CohortDefinition}s
@@ -57,6 +82,11 @@ public class ReportingRestController extends MainResourceController {
 
     public static final String REPORTING_REST_NAMESPACE = "/reportingrest";
 
+    /**
+     * Name of the {@link EvaluationResultCache} used by {@link #evaluateReportDataSet}
+     */
+    public static final String REPORT_DATA_SET_CACHE = "reportDataSet";
+
     /**
      * @see org.openmrs.module.webservices.rest.web.v1_0.controller.BaseRestController#getNamespace()
      */
@@ -88,6 +118,41 @@ public class ReportingRestController extends MainResourceController {
         return processAndDownloadReport(reportRequestUuid, getReportService());
     }
 
+    /**
+     * Sends the rendered output of a report request as a binary file, streamed from disk, with support for resuming
+     * (Range) and for conditional requests (If-None-Match / If-Modified-Since)
+     */
+    @RequestMapping(value = "/downloadReport/{reportRequestUuid}", method = RequestMethod.GET)
+    public void streamReport(HttpServletRequest request, HttpServletResponse response,
+                             @PathVariable String reportRequestUuid) throws IOException {
+        ReportService reportService = getReportService();
+        ReportRequest reportRequest = reportService.getReportRequestByUuid(reportRequestUuid);
+        if (reportRequest == null) {
+            throw new ObjectNotFoundException("Report request not found: " + reportRequestUuid);
+        }
+
+        RenderingMode renderingMode = reportRequest.getRenderingMode();
+        String fileName = renderingMode.getRenderer().getFilename(reportRequest).replace(" ", "_");
+        String contentType = renderingMode.getRenderer().getRenderedContentType(reportRequest);
+
+        FileDownload download;
+        File file = getRenderedOutputFile(reportRequest);
+        if (file.isFile()) {
+            download = new FileDownload(file, fileName, contentType, reportRequest.getUuid());
+        }
+        else {
+            // not where we expected the reporting module to keep it, so we have to load it into memory
+            byte[] fileContent = reportService.loadRenderedOutput(reportRequest);
+            if (fileContent == null) {
+                throw new ObjectNotFoundException("No rendered output for report request: " + reportRequestUuid);
+            }
+            Date rendered = reportRequest.getRenderCompleteDatetime();
+            download = new FileDownload(fileContent, rendered == null ? 0 : rendered.getTime(), fileName, contentType,
+                    reportRequest.getUuid());
+        }
+        download.write(request, response);
+    }
+
     @RequestMapping(value = "/downloadMultipleReports", method = RequestMethod.GET)
     @ResponseStatus(HttpStatus.OK)
     public List<ReportFile> downloadMultipleReports(@RequestParam String reportRequestUuids) {
@@ -100,23 +165,76 @@ public class ReportingRestController extends MainResourceController {
         return fileDownloadList;
     }
 
+    /**
+     * Like {@link #downloadMultipleReports(String)}, but as a zip file with one entry per report, written to the
+     * response one report at a time, so that they never all have to be in memory
+     */
+    @RequestMapping(value = "/downloadMultipleReports", method = RequestMethod.GET, params = "format=zip")
+    public void downloadMultipleReportsAsZip(HttpServletResponse response, @RequestParam String reportRequestUuids)
+            throws IOException {
+        ReportService reportService = getReportService();
+        // check them all before we start writing, since after that we cannot report an error
+        List<ReportRequest> reportRequests = new ArrayList<ReportRequest>();
+        // output that is not in a file of its own, which we have to load up front to know that it exists
+        Map<ReportRequest, byte[]> loadedOutput = new HashMap<ReportRequest, byte[]>();
+        for (String reportRequestUuid : reportRequestUuids.split(",")) {
+            ReportRequest reportRequest = reportService.getReportRequestByUuid(reportRequestUuid.trim());
+            if (reportRequest == null) {
+                throw new ObjectNotFoundException("Report request not found: " + reportRequestUuid);
+            }
+            if (!getRenderedOutputFile(reportRequest).isFile()) {
+                byte[] fileContent = reportService.loadRenderedOutput(reportRequest);
+                if (fileContent == null) {
+                    throw new ObjectNotFoundException("No rendered output for report request: " + reportRequestUuid);
+                }
+                loadedOutput.put(reportRequest, fileContent);
+            }
+            reportRequests.add(reportRequest);
+        }
+
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"reports.zip\"");
+        ZipOutputStream zip = new ZipOutputStream(response.getOutputStream());
+        Set<String> entryNames = new HashSet<String>();
+        for (ReportRequest reportRequest : reportRequests) {
+            String fileName = reportRequest.getRenderingMode().getRenderer().getFilename(reportRequest).replace(" ", "_");
+            String entryName = fileName;
+            for (int i = 2; !entryNames.add(entryName); ++i) {
+                entryName = i + "_" + fileName;
+            }
+            zip.putNextEntry(new ZipEntry(entryName));
+            byte[] fileContent = loadedOutput.get(reportRequest);
+            if (fileContent != null) {
+                zip.write(fileContent);
+            }
+            else {
+                Files.copy(getRenderedOutputFile(reportRequest).toPath(), zip);
+            }
+            zip.closeEntry();
+            // hand what we have so far to the client
+            zip.flush();
+        }
+        zip.finish();
+        response.flushBuffer();
+    }
+
+    /**
+     * Evaluates one data set of a report definition. Goes through the {@link EvaluationResultCache} if it is enabled
+     * for "reportDataSet", in which case If-None-Match is answered with 304 Not Modified while the result is cached.
+     */
     @RequestMapping(value = "/reportDataSet/{reportDefinitionUuid}/{dataSetKey}", method = RequestMethod.GET)
-    @ResponseStatus(HttpStatus.OK)
     @ResponseBody
     public SimpleObject evaluateReportDataSet(HttpServletRequest request,
                                               HttpServletResponse response,
+                                              WebRequest webRequest,
                                               @PathVariable String reportDefinitionUuid,
                                               @PathVariable String dataSetKey) {
-        ReportDefinition reportDefinition = DefinitionContext.getReportDefinitionService().getDefinitionByUuid(reportDefinitionUuid);
+        ReportDefinition reportDefinition = getDefinitionCache().getDefinition(ReportDefinition.class,
+                DefinitionContext.getReportDefinitionService(), reportDefinitionUuid);
         if (reportDefinition == null) {
             throw new ObjectNotFoundException("Report definition not found: " +  reportDefinitionUuid);
         }
-        Mapped<? extends DataSetDefinition> dataSetDefinition = null;
-        for (String key : reportDefinition.getDataSetDefinitions().keySet()) {
-            if (key.equals(dataSetKey)) {
-                dataSetDefinition = reportDefinition.getDataSetDefinitions().get(key);
-            }
-        }
+        Mapped<? extends DataSetDefinition> dataSetDefinition = reportDefinition.getDataSetDefinitions().get(dataSetKey);
         if (dataSetDefinition == null) {
             throw new ObjectNotFoundException("Data set definition not found: " +  dataSetKey);
         }
@@ -134,7 +252,33 @@ public class ReportingRestController extends MainResourceController {
             }
         }
         try {
-            DataSet dataSet = DefinitionContext.getDataSetDefinitionService().evaluate(dataSetDefinition, context);
+            DataSet dataSet;
+            ExpiringLruCache<String, CachedEvaluation> cache = getEvaluationResultCache().getCache(REPORT_DATA_SET_CACHE);
+            if (cache == null) {
+                dataSet = DefinitionContext.getDataSetDefinitionService().evaluate(dataSetDefinition, context);
+            }
+            else {
+                String key = EvaluationCacheKey.build(reportDefinition, context) + ":" + dataSetKey;
+                CachedEvaluation cached = cache.get(key);
+                boolean hit = cached != null;
+                if (!hit) {
+                    dataSet = DefinitionContext.getDataSetDefinitionService().evaluate(dataSetDefinition, context);
+                    // the context's cache holds intermediate results that we don't need to keep around
+                    context.clearCache();
+                    // the cache outlives this request's Hibernate session, so it gets a copy without persistent objects
+                    DataSet detached = (DataSet) getEvaluationDetacher().detach(dataSet);
+                    cached = new CachedEvaluation(key, detached != null ? detached : dataSet);
+                    if (detached != null) {
+                        cache.put(key, cached);
+                    }
+                }
+                response.setHeader("Cache-Control", "private, max-age=" + cache.getMillisToLive(key) / 1000);
+                response.setHeader("X-Cache", hit ? "HIT" : "MISS");
+                if (webRequest.checkNotModified(cached.getEtag())) {
+                    return null;
+                }
+                dataSet = (DataSet) getEvaluationDetacher().attach(cached.getEvaluated());
+            }
             RequestContext requestContext = RestUtil.getRequestContext(request, response, Representation.DEFAULT);
             return (SimpleObject) ConversionUtil.convertToRepresentation(dataSet, requestContext.getRepresentation());
         }
@@ -143,6 +287,111 @@ public class ReportingRestController extends MainResourceController {
         }
     }
 
+    /**
+     * @return size, hits, misses and evictions of the evaluation result cache of each resource, and of the ad hoc
+     * row filter cache
+     * @throws APIAuthenticationException unless the user may manage global properties, which configure these caches
+     */
+    @RequestMapping(value = "/evaluationCache", method = RequestMethod.GET)
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public SimpleObject getEvaluationCacheStatistics() {
+        requireCacheManagementPrivilege();
+        SimpleObject result = new SimpleObject();
+        result.putAll(getEvaluationResultCache().getStatistics());
+        result.put("adhocRowFilter", getRowFilterResultCache().getStatistics());
+        return result;
+    }
+
+    /**
+     * Empties the caches for everyone, so everything cached will be evaluated again
+     *
+     * @throws APIAuthenticationException unless the user may manage global properties, which configure these caches
+     */
+    @RequestMapping(value = "/evaluationCache", method = RequestMethod.DELETE)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void clearEvaluationCache() {
+        requireCacheManagementPrivilege();
+        getEvaluationResultCache().clear();
+        getRowFilterResultCache().clear();
+        getDefinitionCache().clear();
+    }
+
+    /**
+     * @return status of an evaluation that was started with ?async=true
+     */
+    @RequestMapping(value = "/evaluationJob/{jobUuid}", method = RequestMethod.GET)
+    @ResponseBody
+    public SimpleObject getEvaluationJob(@PathVariable String jobUuid) {
+        return asRepresentation(getEvaluationJobOrFail(jobUuid));
+    }
+
+    /**
+     * @return the evaluated result, if the job is completed, or else (with status 202) the job's status
+     */
+    @RequestMapping(value = "/evaluationJob/{jobUuid}/result", method = RequestMethod.GET)
+    @ResponseBody
+    public Object getEvaluationJobResult(HttpServletResponse response, @PathVariable String jobUuid) {
+        EvaluationJob job = getEvaluationJobOrFail(jobUuid);
+        switch (job.getStatus()) {
+            case COMPLETED:
+                return job.getResult();
+            case FAILED:
+                throw new GenericRestException("Evaluation failed: " + job.getErrorMessage());
+            case CANCELLED:
+                throw new ObjectNotFoundException("Evaluation was cancelled");
+            default:
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                return asRepresentation(job);
+        }
+    }
+
+    @RequestMapping(value = "/evaluationJob/{jobUuid}", method = RequestMethod.DELETE)
+    @ResponseBody
+    public SimpleObject cancelEvaluationJob(@PathVariable String jobUuid) {
+        getEvaluationJobOrFail(jobUuid);
+        return asRepresentation(getEvaluationJobManager().cancelJob(jobUuid));
+    }
+
+    /**
+     * @param job
+     * @return the representation of an evaluation job, as returned by the endpoints above, and by resources when called
+     * with ?async=true
+     */
+    public static SimpleObject asRepresentation(EvaluationJob job) {
+        String self = RestConstants.URI_PREFIX + RestConstants.VERSION_1 + REPORTING_REST_NAMESPACE + "/evaluationJob/" + job.getUuid();
+        List<Hyperlink> links = new ArrayList<Hyperlink>();
+        links.add(new Hyperlink("self", self));
+        links.add(new Hyperlink("result", self + "/result"));
+
+        SimpleObject result = new SimpleObject();
+        result.add("uuid", job.getUuid());
+        result.add("resource", job.getResourceName());
+        result.add("definitionUuid", job.getDefinitionUuid());
+        result.add("status", job.getStatus().name());
+        result.add("progress", job.getProgress());
+        result.add("dateSubmitted", ConversionUtil.convertToRepresentation(job.getDateSubmitted(), Representation.DEFAULT));
+        result.add("dateStarted", ConversionUtil.convertToRepresentation(job.getDateStarted(), Representation.DEFAULT));
+        result.add("dateCompleted", ConversionUtil.convertToRepresentation(job.getDateCompleted(), Representation.DEFAULT));
+        result.add("errorMessage", job.getErrorMessage());
+        result.add("links", links);
+        return result;
+    }
+
+    private void requireCacheManagementPrivilege() {
+        if (!Context.hasPrivilege(PrivilegeConstants.MANAGE_GLOBAL_PROPERTIES)) {
+            throw new APIAuthenticationException(Context.getAuthenticatedUser() + " does not have permission to manage the evaluation caches");
+        }
+    }
+
+    private EvaluationJob getEvaluationJobOrFail(String jobUuid) {
+        EvaluationJob job = getEvaluationJobManager().getJob(jobUuid);
+        if (job == null) {
+            throw new ObjectNotFoundException("Evaluation job not found (or expired): " + jobUuid);
+        }
+        return job;
+    }
+
     private ReportFile processAndDownloadReport(String reportRequestUuid, ReportService reportService) {
         ReportRequest reportRequest = reportService.getReportRequestByUuid(reportRequestUuid);
         if (reportRequest == null) {
@@ -161,7 +410,35 @@ public class ReportingRestController extends MainResourceController {
         }
     }
 
+    /**
+     * @return where the reporting module saves the rendered output of reportRequest
+     */
+    private File getRenderedOutputFile(ReportRequest reportRequest) {
+        File reportsDirectory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("reporting/reports");
+        return new File(reportsDirectory, reportRequest.getUuid() + ".out");
+    }
+
     private ReportService getReportService() {
         return Context.getService(ReportService.class);
     }
+
+    private EvaluationJobManager getEvaluationJobManager() {
+        return Context.getRegisteredComponents(EvaluationJobManager.class).get(0);
+    }
+
+    private EvaluationResultCache getEvaluationResultCache() {
+        return Context.getRegisteredComponents(EvaluationResultCache.class).get(0);
+    }
+
+    private DefinitionCache getDefinitionCache() {
+        return Context.getRegisteredComponents(DefinitionCache.class).get(0);
+    }
+
+    private EvaluationDetacher getEvaluationDetacher() {
+        return Context.getRegisteredComponents(EvaluationDetacher.class).get(0);
+    }
+
+    private RowFilterResultCache getRowFilterResultCache() {
+        return Context.getRegisteredComponents(RowFilterResultCache.class).get(0);
+    }
 }
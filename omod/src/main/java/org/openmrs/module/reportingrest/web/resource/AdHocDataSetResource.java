@@ -22,16 +22,21 @@ import org.openmrs.module.reportingrest.adhoc.AdHocDataSet;
 import org.openmrs.module.reportingrest.adhoc.AdHocExportManager;
 import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.Hyperlink;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.resource.api.Creatable;
+import org.openmrs.module.webservices.rest.web.resource.api.Listable;
 import org.openmrs.module.webservices.rest.web.resource.api.Purgeable;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Resource(name = RestConstants.VERSION_1 + ReportingRestController.REPORTING_REST_NAMESPACE + "/adhocdataset",
         supportedClass = AdHocDataSet.class, supportedOpenmrsVersions = {"1.8.* - 9.9.*"})
-public class AdHocDataSetResource implements Creatable, Purgeable {
+public class AdHocDataSetResource implements Creatable, Listable, Purgeable {
 
     private ObjectMapper jackson = new ObjectMapper();
 
@@ -67,6 +72,32 @@ public class AdHocDataSetResource implements Creatable, Purgeable {
         }
     }
 
+    /**
+     * Lists the authenticated user's ad hoc data sets, without their row filters and columns, a page at a time
+     */
+    @Override
+    public SimpleObject getAll(RequestContext context) throws ResponseException {
+        List<AdHocExportManager.AdHocDataSet> all = getManager().getAdHocDataSets(Context.getAuthenticatedUser());
+        int from = Math.min(context.getStartIndex(), all.size());
+        int to = Math.min(from + context.getLimit(), all.size());
+
+        List<Hyperlink> links = new ArrayList<Hyperlink>();
+        if (to < all.size()) {
+            links.add(new Hyperlink("next", context.getNextLink()));
+        }
+        if (from > 0) {
+            links.add(new Hyperlink("prev", context.getPreviousLink()));
+        }
+
+        SimpleObject result = new SimpleObject();
+        result.add("results", new ArrayList<AdHocExportManager.AdHocDataSet>(all.subList(from, to)));
+        result.add("totalCount", all.size());
+        if (!links.isEmpty()) {
+            result.add("links", links);
+        }
+        return result;
+    }
+
     @Override
     public String getUri(Object delegate) {
         if (delegate == null)
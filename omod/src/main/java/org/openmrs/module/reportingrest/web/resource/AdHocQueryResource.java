@@ -15,9 +15,13 @@
 package org.openmrs.module.reportingrest.web.resource;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.openmrs.Cohort;
+import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.reporting.cohort.Cohorts;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
@@ -35,12 +39,17 @@ import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
 import org.openmrs.module.reporting.query.IdSet;
 import org.openmrs.module.reporting.query.Query;
+import org.openmrs.module.reportingrest.SampledIdSet;
 import org.openmrs.module.reportingrest.SimpleIdSet;
 import org.openmrs.module.reportingrest.adhoc.AdHocColumn;
 import org.openmrs.module.reportingrest.adhoc.AdHocDataSet;
 import org.openmrs.module.reportingrest.adhoc.AdHocParameter;
 import org.openmrs.module.reportingrest.adhoc.AdHocRowFilter;
+import org.openmrs.module.reportingrest.adhoc.RowFilterComposition;
+import org.openmrs.module.reportingrest.async.ParallelRowFilterEvaluator;
+import org.openmrs.module.reportingrest.cache.RowFilterResultCache;
 import org.openmrs.module.reportingrest.util.ParameterUtil;
+import org.openmrs.module.reportingrest.util.RoaringBitmapCodec;
 import org.openmrs.module.reportingrest.web.AdHocRowFilterResults;
 import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.SimpleObject;
@@ -54,9 +63,16 @@ import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.util.OpenmrsUtil;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 /**
  * Used for <em>evaluating</em> a list of queries +/- columns that refer to definition libraries on the fly.
@@ -65,12 +81,36 @@ import java.util.Map;
  * @see {@link org.openmrs.module.reportingrest.web.resource.AdHocDataSetResource}
  *
  * If you POST with v=rowFilters, you will get back detailed results about the row filters, otherwise you will
- * get back the result of evaluating the data set itself
+ * get back the result of evaluating the data set itself. v=bitmap is like v=rowFilters, but each result is given as
+ * its size and its member ids as a base64 Roaring bitmap (see {@link RoaringBitmapCodec}).
  */
 @Resource(name = RestConstants.VERSION_1 + ReportingRestController.REPORTING_REST_NAMESPACE + "/adhocquery",
         supportedClass = AdHocDataSet.class, supportedOpenmrsVersions = {"1.8.* - 9.9.*"})
 public class AdHocQueryResource implements Creatable {
 
+    private final Log log = LogFactory.getLog(getClass());
+
+    public static final String BITMAP_REPRESENTATION = "bitmap";
+
+    /**
+     * Number of rows evaluated for v=preview
+     */
+    public static final int PREVIEW_ROWS = 10;
+
+    private static final int PREVIEW_FIRST_CHUNK_SIZE = 1000;
+
+    private static final int PREVIEW_MAX_CHUNK_SIZE = 100000;
+
+    /**
+     * Each chunk evaluates every row filter again, so after this many we evaluate them once on all patients instead
+     */
+    private static final int PREVIEW_MAX_CHUNKS = 4;
+
+    // not final, so that tests can use smaller chunks
+    int previewFirstChunkSize = PREVIEW_FIRST_CHUNK_SIZE;
+
+    int previewMaxChunks = PREVIEW_MAX_CHUNKS;
+
     private AllDefinitionLibraries libraries;
 
     /**
@@ -89,7 +129,8 @@ public class AdHocQueryResource implements Creatable {
         ObjectMapper jackson = new ObjectMapper();
         AdHocDataSet adHocDataSet = jackson.convertValue(post, AdHocDataSet.class);
 
-        boolean previewMode = context.getRepresentation().getRepresentation().equals("rowFilters") || context.getRepresentation().getRepresentation().equals("preview");
+        boolean bitmapMode = context.getRepresentation().getRepresentation().equals(BITMAP_REPRESENTATION);
+        boolean previewMode = context.getRepresentation().getRepresentation().equals("rowFilters") || context.getRepresentation().getRepresentation().equals("preview") || bitmapMode;
         AdHocRowFilterResults rowFilterResults = new AdHocRowFilterResults();
 
         if (!PatientDataSetDefinition.class.getName().equals(adHocDataSet.getType())) {
@@ -140,7 +181,6 @@ public class AdHocQueryResource implements Creatable {
             dsd.addColumn(columnName, definition, mappings);
         }
 
-        CohortDefinitionService cohortDefinitionService = Context.getService(CohortDefinitionService.class);
         EvaluationContext evaluationContext = new EvaluationContext();
         try {
             evaluationContext.setParameterValues(ParameterUtil.convertParameterValues(dsd.getParameters(), adHocDataSet.getParameterValues()));
@@ -159,16 +199,10 @@ public class AdHocQueryResource implements Creatable {
             }
             Mapped<? extends Query> mappedQuery = mapMissingParametersStraightThrough(cd, rowFilter.getParameterValues());
             queries.add(mappedQuery);
-
-            try {
-                EvaluatedCohort evaluated = cohortDefinitionService.evaluate((Mapped<CohortDefinition>) mappedQuery, evaluationContext);
-                rowFilterResults.addResult(simplify(evaluated));
-            } catch (EvaluationException e) {
-                throw new IllegalStateException("Failed to evaluate: " + rowFilter.getKey(), e);
-            }
         }
 
-        EvaluatedCohort allRows;
+        boolean limitedPreview = context.getRepresentation().getRepresentation().equals("preview");
+        IdSet<?> allRows;
         if (queries.size() > 0) {
             CompositionCohortDefinition cd = new CompositionCohortDefinition();
             cd.setParameters(dsd.getParameters());
@@ -181,48 +215,39 @@ public class AdHocQueryResource implements Creatable {
             }
             cd.setCompositionString(adHocDataSet.getCustomRowFilterCombination());
 
-            try {
-                allRows = cohortDefinitionService.evaluate(cd, evaluationContext);
-                rowFilterResults.setResult(new SimpleIdSet(allRows.getMemberIds()));
-            } catch (EvaluationException e) {
-                throw new IllegalArgumentException("Failed to evaluate composition: " + adHocDataSet.getCustomRowFilterCombination(), e);
+            if (limitedPreview) {
+                // for preview purposes, we just evaluate on a small number of rows
+                allRows = previewRows(adHocDataSet.getRowFilters(), queries, cd, evaluationContext);
+                evaluationContext.setBaseCohort(firstRows(allRows.getMemberIds()));
             }
+            else {
+                List<Boolean> fromCache = new ArrayList<Boolean>();
+                List<Set<Integer>> rowFilterMemberIds = evaluateRowFilters(adHocDataSet.getRowFilters(), queries, evaluationContext, fromCache);
+                for (int i = 0; i < rowFilterMemberIds.size(); ++i) {
+                    rowFilterResults.addResult(new SimpleIdSet(rowFilterMemberIds.get(i)), fromCache.get(i));
+                }
 
-            if (context.getRepresentation().getRepresentation().equals("rowFilters")) {
-                return rowFilterResults;
-            }
+                EvaluatedCohort composition = evaluateComposition(cd, rowFilterMemberIds, evaluationContext);
+                rowFilterResults.setResult(new SimpleIdSet(composition.getMemberIds()));
 
-            Cohort cohort;
-            if (context.getRepresentation().getRepresentation().equals("preview")) {
-                // for preview purposes, we just evaluate on a small number of rows
-                cohort = new Cohort();
-                int j = 0;
-                for (Integer member : rowFilterResults.getResult().getMemberIds()) {
-                    j += 1;
-                    cohort.addMember(member);
-                    if (j >= 10) {
-                        break;
-                    }
+                if (context.getRepresentation().getRepresentation().equals("rowFilters")) {
+                    return rowFilterResults;
+                }
+                if (bitmapMode) {
+                    return asBitmaps(rowFilterResults);
                 }
-            } else {
-                cohort = allRows;
-            }
 
-            evaluationContext.setBaseCohort(cohort);
+                allRows = composition;
+                evaluationContext.setBaseCohort(composition);
+            }
         }
         else { // no row filters
-            allRows = Cohorts.allPatients(evaluationContext);
-            if (context.getRepresentation().getRepresentation().equals("preview")) {
-                Cohort cohort = new Cohort();
-                int j = 0;
-                for (Integer member : allRows.getMemberIds()) {
-                    j += 1;
-                    cohort.addMember(member);
-                    if (j >= 10) {
-                        break;
-                    }
-                }
-                evaluationContext.setBaseCohort(cohort);
+            if (limitedPreview) {
+                allRows = new SampledIdSet(new LinkedHashSet<Integer>(getPatientIds(0, PREVIEW_ROWS)), countPatients(), false);
+                evaluationContext.setBaseCohort(new Cohort(allRows.getMemberIds()));
+            }
+            else {
+                allRows = Cohorts.allPatients(evaluationContext);
             }
         }
 
@@ -235,12 +260,207 @@ public class AdHocQueryResource implements Creatable {
 
         SimpleObject o = (SimpleObject) ConversionUtil.convertToRepresentation(data, Representation.DEFAULT);
         if (previewMode) {
-            o.put("allRows", simplify(allRows));
+            o.put("allRows", allRows instanceof SampledIdSet ? allRows : simplify(allRows));
         }
         return o;
 
     }
 
+    /**
+     * Row filters that the current user evaluated recently with the same parameters are taken from the
+     * {@link RowFilterResultCache}, and the others are evaluated (maybe in parallel), and cached.
+     *
+     * @param rowFilters
+     * @param queries the mapped definitions of rowFilters
+     * @param evaluationContext
+     * @param fromCache if not null, this gets whether each row filter came from the cache
+     * @return the member ids of each row filter, in order
+     */
+    List<Set<Integer>> evaluateRowFilters(List<AdHocRowFilter> rowFilters, List<Mapped> queries,
+                                                  EvaluationContext evaluationContext, List<Boolean> fromCache) {
+        User user = Context.getAuthenticatedUser();
+        String userUuid = user == null ? null : user.getUuid();
+        RowFilterResultCache cache = Context.getRegisteredComponents(RowFilterResultCache.class).get(0);
+        boolean cacheEnabled = userUuid != null && cache.isEnabled();
+
+        final CohortDefinitionService cohortDefinitionService = Context.getService(CohortDefinitionService.class);
+        List<Set<Integer>> results = new ArrayList<Set<Integer>>();
+        List<String> cacheKeys = new ArrayList<String>();
+        List<Callable<EvaluatedCohort>> rowFilterEvaluations = new ArrayList<Callable<EvaluatedCohort>>();
+        for (int i = 0; i < queries.size(); ++i) {
+            final String key = rowFilters.get(i).getKey();
+            final Mapped<CohortDefinition> mappedQuery = queries.get(i);
+
+            String cacheKey = cacheEnabled ? RowFilterResultCache.buildKey((Mapped<DefinitionLibraryCohortDefinition>) queries.get(i), evaluationContext) : null;
+            Set<Integer> cached = cacheKey == null ? null : cache.get(userUuid, cacheKey);
+            results.add(cached);
+            cacheKeys.add(cacheKey);
+            if (fromCache != null) {
+                fromCache.add(cached != null);
+            }
+            if (cached != null) {
+                continue;
+            }
+
+            // row filters may be evaluated in parallel, and the context's cache is not thread-safe
+            final EvaluationContext rowFilterContext = evaluationContext.shallowCopy();
+            rowFilterEvaluations.add(new Callable<EvaluatedCohort>() {
+
+                @Override
+                public EvaluatedCohort call() {
+                    try {
+                        return cohortDefinitionService.evaluate(mappedQuery, rowFilterContext);
+                    } catch (EvaluationException e) {
+                        throw new IllegalStateException("Failed to evaluate: " + key, e);
+                    }
+                }
+            });
+        }
+
+        List<EvaluatedCohort> evaluated;
+        try {
+            evaluated = Context.getRegisteredComponents(ParallelRowFilterEvaluator.class).get(0).evaluate(rowFilterEvaluations);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to evaluate row filters", e);
+        }
+
+        // fill in the ones that were not cached
+        Iterator<EvaluatedCohort> evaluatedIterator = evaluated.iterator();
+        for (int i = 0; i < results.size(); ++i) {
+            if (results.get(i) == null) {
+                Set<Integer> memberIds = Collections.unmodifiableSet(new HashSet<Integer>(evaluatedIterator.next().getMemberIds()));
+                results.set(i, memberIds);
+                if (cacheKeys.get(i) != null) {
+                    cache.put(userUuid, cacheKeys.get(i), memberIds);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates the row filters and their composition on successively larger chunks of patients (in patient id order)
+     * until we have found enough rows for a preview, instead of evaluating them on all patients. If the rows are so
+     * rare that a few chunks don't find enough, the row filters are evaluated once on all patients instead, so that
+     * they are evaluated at most {@link #PREVIEW_MAX_CHUNKS} + 1 times. If a row filter's evaluator ignores the base
+     * cohort, a chunk costs as much as all patients, so then we evaluate on all patients right after the first chunk.
+     *
+     * @return the rows found, with the total number of rows, extrapolated from the patients we looked at if we didn't
+     * look at all of them
+     */
+    private SampledIdSet previewRows(List<AdHocRowFilter> rowFilters, List<Mapped> queries, CompositionCohortDefinition cd,
+                                     EvaluationContext evaluationContext) {
+        Set<Integer> found = new TreeSet<Integer>();
+        int looked = 0;
+        int chunkSize = previewFirstChunkSize;
+        int chunks = 0;
+        int lastPatientId = 0;
+        boolean lookedAtAll = false;
+        boolean chunksAreCheaper = true;
+        while (found.size() < PREVIEW_ROWS && !lookedAtAll) {
+            if (chunks++ == previewMaxChunks || !chunksAreCheaper) {
+                Set<Integer> rows = new TreeSet<Integer>(evaluateComposition(cd,
+                        evaluateRowFilters(rowFilters, queries, evaluationContext, null), evaluationContext).getMemberIds());
+                return new SampledIdSet(rows, rows.size(), false);
+            }
+            List<Integer> chunk = getPatientIds(lastPatientId, chunkSize);
+            lookedAtAll = chunk.size() < chunkSize;
+            if (chunk.isEmpty()) {
+                break;
+            }
+            looked += chunk.size();
+            lastPatientId = chunk.get(chunk.size() - 1);
+            chunkSize = Math.min(chunkSize * 4, PREVIEW_MAX_CHUNK_SIZE);
+
+            // a fresh context, since cached results are only valid for one base cohort
+            EvaluationContext chunkContext = new EvaluationContext();
+            chunkContext.setParameterValues(evaluationContext.getParameterValues());
+            chunkContext.setEvaluationDate(evaluationContext.getEvaluationDate());
+            Set<Integer> chunkIds = new HashSet<Integer>(chunk);
+            chunkContext.setBaseCohort(new Cohort(chunkIds));
+
+            List<Set<Integer>> rowFilterMemberIds = new ArrayList<Set<Integer>>();
+            for (Set<Integer> evaluated : evaluateRowFilters(rowFilters, queries, chunkContext, null)) {
+                // not every cohort definition evaluator respects the base cohort
+                Set<Integer> memberIds = new HashSet<Integer>(evaluated);
+                if (memberIds.retainAll(chunkIds)) {
+                    chunksAreCheaper = false;
+                }
+                rowFilterMemberIds.add(memberIds);
+            }
+            Set<Integer> rows = new HashSet<Integer>(evaluateComposition(cd, rowFilterMemberIds, chunkContext).getMemberIds());
+            rows.retainAll(chunkIds);
+            found.addAll(rows);
+        }
+
+        if (lookedAtAll) {
+            return new SampledIdSet(found, found.size(), false);
+        }
+        int estimate = (int) Math.round((double) found.size() * countPatients() / looked);
+        return new SampledIdSet(found, Math.max(estimate, found.size()), true);
+    }
+
+    private Cohort firstRows(Set<Integer> rows) {
+        Cohort cohort = new Cohort();
+        for (Integer member : rows) {
+            if (cohort.size() >= PREVIEW_ROWS) {
+                break;
+            }
+            cohort.addMember(member);
+        }
+        return cohort;
+    }
+
+    /**
+     * @param afterPatientId
+     * @param maxResults
+     * @return up to maxResults ids of non-voided patients with ids greater than afterPatientId, in order
+     */
+    private List<Integer> getPatientIds(int afterPatientId, int maxResults) {
+        return getDbSessionFactory().getCurrentSession()
+                .createQuery("select p.patientId from Patient p where p.voided = false and p.patientId > :after order by p.patientId")
+                .setParameter("after", afterPatientId)
+                .setMaxResults(maxResults)
+                .list();
+    }
+
+    private int countPatients() {
+        Number count = (Number) getDbSessionFactory().getCurrentSession()
+                .createQuery("select count(p) from Patient p where p.voided = false")
+                .uniqueResult();
+        return count.intValue();
+    }
+
+    private DbSessionFactory getDbSessionFactory() {
+        return Context.getRegisteredComponents(DbSessionFactory.class).get(0);
+    }
+
+    /**
+     * Combines the already-evaluated row filters in memory. If the composition string is something we can't parse,
+     * the reporting module evaluates the composition instead (which evaluates the row filters again).
+     */
+    private EvaluatedCohort evaluateComposition(CompositionCohortDefinition cd, List<Set<Integer>> rowFilterMemberIds,
+                                                EvaluationContext evaluationContext) {
+        RowFilterComposition composition = null;
+        try {
+            composition = RowFilterComposition.parse(cd.getCompositionString(), rowFilterMemberIds.size());
+        } catch (IllegalArgumentException e) {
+            log.debug("Evaluating composition " + cd.getCompositionString() + " with the reporting module: " + e.getMessage());
+        }
+
+        if (composition != null) {
+            Set<Integer> allPatients = composition.usesNot() ? Cohorts.allPatients(evaluationContext).getMemberIds() : null;
+            return new EvaluatedCohort(new Cohort(composition.evaluate(rowFilterMemberIds, allPatients)), cd, evaluationContext);
+        }
+        try {
+            return Context.getService(CohortDefinitionService.class).evaluate(cd, evaluationContext);
+        } catch (EvaluationException e) {
+            throw new IllegalArgumentException("Failed to evaluate composition: " + cd.getCompositionString(), e);
+        }
+    }
+
     private Mapped<Query> mapMissingParametersStraightThrough(Query cd, Map<String, Object> parameterValues) {
         Map<String, Object> mappings = new HashMap<String, Object>();
         for (Parameter parameter : cd.getParameters()) {
@@ -252,6 +472,28 @@ public class AdHocQueryResource implements Creatable {
         return new Mapped<Query>(cd, mappings);
     }
 
+    private SimpleObject asBitmaps(AdHocRowFilterResults rowFilterResults) {
+        List<SimpleObject> individualResults = new ArrayList<SimpleObject>();
+        if (rowFilterResults.getIndividualResults() != null) {
+            for (int i = 0; i < rowFilterResults.getIndividualResults().size(); ++i) {
+                SimpleObject individualResult = asBitmap(rowFilterResults.getIndividualResults().get(i));
+                individualResult.put("fromCache", rowFilterResults.getIndividualResultsFromCache().get(i));
+                individualResults.add(individualResult);
+            }
+        }
+        SimpleObject ret = new SimpleObject();
+        ret.put("result", asBitmap(rowFilterResults.getResult()));
+        ret.put("individualResults", individualResults);
+        return ret;
+    }
+
+    private SimpleObject asBitmap(IdSet<?> idSet) {
+        SimpleObject ret = new SimpleObject();
+        ret.put("size", idSet.getSize());
+        ret.put("bitmap", RoaringBitmapCodec.encode(idSet.getMemberIds()));
+        return ret;
+    }
+
     private IdSet simplify(IdSet<?> complex) {
         return new SimpleIdSet(complex.getMemberIds());
     }
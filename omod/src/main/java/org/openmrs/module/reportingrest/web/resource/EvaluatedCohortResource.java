@@ -19,6 +19,7 @@ import io.swagger.models.properties.DateProperty;
 import io.swagger.models.properties.StringProperty;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
@@ -31,13 +32,20 @@ import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
 import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.openmrs.module.reporting.serializer.ReportingSerializer;
+import org.openmrs.module.reportingrest.cache.CachedEvaluation;
+import org.openmrs.module.reportingrest.cache.EvaluationCacheKey;
+import org.openmrs.module.reportingrest.cache.ExpiringLruCache;
+import org.openmrs.module.reportingrest.util.RoaringBitmapCodec;
+import org.openmrs.module.reportingrest.web.JsonLinesWriter;
 import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.ConversionUtil;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.annotation.PropertyGetter;
 import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.representation.DefaultRepresentation;
+import org.openmrs.module.webservices.rest.web.representation.NamedRepresentation;
 import org.openmrs.module.webservices.rest.web.representation.RefRepresentation;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
 import org.openmrs.module.webservices.rest.web.resource.impl.DelegatingResourceDescription;
@@ -45,8 +53,11 @@ import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
 import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOperationException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * {@link Resource} for evaluating {@link CohortDefinition}s
@@ -57,6 +68,23 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 
 	private static Log log = LogFactory.getLog(EvaluatedCohortResource.class);
 
+	/**
+	 * Maximum number of patient ids per query, when looking up members
+	 */
+	public static final int MEMBER_BATCH_SIZE = 5000;
+
+	/**
+	 * Representation with the member ids as a base64 Roaring bitmap (see {@link RoaringBitmapCodec}) instead of
+	 * member refs
+	 */
+	public static final String BITMAP_REPRESENTATION = "bitmap";
+
+	/**
+	 * Representation with only the number of members. Evaluating with this doesn't look up the members, and doesn't
+	 * keep them in memory afterwards (unless a full evaluation is already cached)
+	 */
+	public static final String COUNT_REPRESENTATION = "count";
+
     public EvaluatedCohortResource() {
     }
 
@@ -64,9 +92,16 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 	public Object retrieve(String uuid, RequestContext requestContext)
 			throws ResponseException {
 
+		CohortDefinitionService definitionService = DefinitionContext.getCohortDefinitionService();
+		CohortDefinition definition = getDefinitionByUniqueId(definitionService, CohortDefinition.class, uuid);
+		if (definition == null) {
+			throw new ObjectNotFoundException();
+		}
+
+		EvaluationContext evalContext = getEvaluationContextWithParameters(definition, requestContext, null, null);
+
 		try {
-			EvaluatedCohort evaluatedCohort = getEvaluatedCohort(uuid, requestContext, null);
-			return asRepresentation(evaluatedCohort, requestContext.getRepresentation());
+			return evaluateAndConvert(definition, evalContext, requestContext);
 		}
 		catch (EvaluationException ex) {
 			throw new IllegalArgumentException(ex);
@@ -93,13 +128,87 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 		EvaluationContext evalContext = getEvaluationContextWithParameters(definition, context, null, postBody);
 		
 		try {
-			Evaluated<CohortDefinition> evaluatedCohort = evaluate(definition, DefinitionContext.getCohortDefinitionService(), evalContext);
-			return asRepresentation((EvaluatedCohort) evaluatedCohort, context.getRepresentation());
+			return evaluateAndConvert(definition, evalContext, context);
 		} catch (Exception ex) {
 			throw new IllegalArgumentException("Error evaluating cohort definition", ex);
 		}
 	}
+
+	private Object evaluateAndConvert(CohortDefinition definition, EvaluationContext evalContext,
+	                                  RequestContext requestContext) throws EvaluationException {
+		return evaluateNowOrLater(definition, evalContext, requestContext, new Evaluation<CohortDefinition>() {
+
+			@Override
+			public Object evaluateAndConvert(CohortDefinition definition, EvaluationContext evalContext,
+			                                 RequestContext requestContext) throws EvaluationException {
+				if (isCountRequested(requestContext)) {
+					return countAndConvert(definition, evalContext, requestContext);
+				}
+				Evaluated<CohortDefinition> evaluatedCohort = evaluate(definition, DefinitionContext.getCohortDefinitionService(), evalContext, requestContext);
+				if (JsonLinesWriter.isRequested(requestContext)) {
+					streamMembers((EvaluatedCohort) evaluatedCohort, requestContext);
+					return null;
+				}
+				return asRepresentation((EvaluatedCohort) evaluatedCohort, requestContext.getRepresentation());
+			}
+		});
+	}
 	
+	private boolean isCountRequested(RequestContext requestContext) {
+		Representation rep = requestContext.getRepresentation();
+		return rep instanceof NamedRepresentation && COUNT_REPRESENTATION.equals(rep.getRepresentation());
+	}
+
+	/**
+	 * Evaluates just the number of members. This uses a full evaluation from the result cache if there is one, and
+	 * otherwise evaluates and caches only the count, under the same key a full evaluation would use.
+	 *
+	 * @param definition
+	 * @param evalContext
+	 * @param requestContext
+	 * @return the count representation
+	 * @throws EvaluationException
+	 */
+	private Object countAndConvert(final CohortDefinition definition, final EvaluationContext evalContext,
+	                               RequestContext requestContext) throws EvaluationException {
+		int count;
+		if (definition.getUuid() == null) {
+			count = ((EvaluatedCohort) evaluate(definition, DefinitionContext.getCohortDefinitionService(), evalContext)).getSize();
+		}
+		else {
+			final String key = EvaluationCacheKey.build(definition, evalContext);
+			final ExpiringLruCache<String, CachedEvaluation> cache = getResultCache();
+
+			CachedEvaluation cached = cache == null ? null : cache.get(key);
+			boolean hit = cached != null;
+			if (!hit) {
+				cached = (CachedEvaluation) evaluateOnce(getResourceName() + "|count|" + key, new Callable<Object>() {
+
+					@Override
+					public Object call() throws Exception {
+						EvaluatedCohort evaluated = (EvaluatedCohort) evaluate(definition, DefinitionContext.getCohortDefinitionService(), evalContext);
+						// only the count is kept, so the members (and intermediate results) can be garbage collected
+						evalContext.clearCache();
+						CachedEvaluation entry = new CachedEvaluation(key, evaluated.getSize());
+						if (cache != null) {
+							cache.put(key, entry);
+						}
+						return entry;
+					}
+				});
+			}
+			if (cache != null) {
+				setCacheHeaders(requestContext, cache, key, cached, hit);
+			}
+			count = cached.isCountOnly() ? cached.getCount() : ((EvaluatedCohort) cached.getEvaluated()).getSize();
+		}
+
+		// convert a member-less cohort, so that the definition is represented just like in a full evaluation
+		SimpleObject representation = asRepresentation(new EvaluatedCohort(new Cohort(), definition, evalContext), requestContext.getRepresentation());
+		representation.put("count", count);
+		return representation;
+	}
+
 	/**
 	 * We let the user POST the serialized XML version of a CohortDefinition to this resource in order to evaluate a
 	 * non-saved cohort definition on the fly.
@@ -143,7 +252,10 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 			throw new ObjectNotFoundException();
 		}
 
-		return (EvaluatedCohort) evaluate(definition, definitionService, getEvaluationContextWithParameters(definition, requestContext, parameterPrefix, null));
+		// only set cache headers if this is the cohort being returned, rather than a base cohort for another resource
+		return (EvaluatedCohort) evaluate(definition, definitionService,
+				getEvaluationContextWithParameters(definition, requestContext, parameterPrefix, null),
+				parameterPrefix == null ? requestContext : null);
 	}
 
 	@Override
@@ -165,6 +277,21 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 			description.addProperty("count"); // @PropertyGetter method below
 			description.addSelfLink();
 		}
+		else if (rep instanceof NamedRepresentation && COUNT_REPRESENTATION.equals(rep.getRepresentation())) {
+			description = new DelegatingResourceDescription();
+			description.addProperty("uuid"); // @PropertyGetter method below
+			description.addProperty("definition");
+			description.addProperty("count"); // @PropertyGetter method below
+			description.addSelfLink();
+		}
+		else if (rep instanceof NamedRepresentation && BITMAP_REPRESENTATION.equals(rep.getRepresentation())) {
+			description = new DelegatingResourceDescription();
+			description.addProperty("uuid"); // @PropertyGetter method below
+			description.addProperty("definition");
+			description.addProperty("count"); // @PropertyGetter method below
+			description.addProperty("bitmap"); // @PropertyGetter method below
+			description.addSelfLink();
+		}
 
 		return description;
 	}
@@ -228,12 +355,56 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 	 */
 	@PropertyGetter("members")
 	public List<Patient> getMembers(EvaluatedCohort evaluatedCohort) {
+		List<Patient> ret = new ArrayList<Patient>(evaluatedCohort.size());
+		for (List<Integer> batch : getMemberIdBatches(evaluatedCohort)) {
+			ret.addAll(getPatientsForRefs(batch));
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the REFs of the cohort members to the response, one per line, a batch at a time, so that memory use does
+	 * not depend on the size of the cohort
+	 */
+	private void streamMembers(EvaluatedCohort evaluatedCohort, RequestContext requestContext) {
+		if (requestContext.getResponse() == null) {
+			throw new IllegalStateException("Cannot stream cohort members without a response");
+		}
+		try {
+			JsonLinesWriter writer = new JsonLinesWriter(requestContext.getResponse());
+			for (List<Integer> batch : getMemberIdBatches(evaluatedCohort)) {
+				for (Patient patient : getPatientsForRefs(batch)) {
+					writer.write(ConversionUtil.convertToRepresentation(patient, Representation.REF));
+				}
+				writer.flush();
+			}
+			writer.close();
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException("Error streaming cohort members", ex);
+		}
+	}
+
+	/**
+	 * Passing every member id to a single query gives enormous IN clauses for large cohorts, so we split them up
+	 */
+	private List<List<Integer>> getMemberIdBatches(EvaluatedCohort evaluatedCohort) {
+		List<Integer> memberIds = new ArrayList<Integer>(evaluatedCohort.getMemberIds());
+		Collections.sort(memberIds);
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		for (int i = 0; i < memberIds.size(); i += MEMBER_BATCH_SIZE) {
+			batches.add(memberIds.subList(i, Math.min(i + MEMBER_BATCH_SIZE, memberIds.size())));
+		}
+		return batches;
+	}
+
+	private List<Patient> getPatientsForRefs(List<Integer> patientIds) {
 		// it is impractical to write a test case that verifies this produces an efficient hibernate query, but I manually
 		// verified it with hibernate.show_sql=true
-        HqlQueryBuilder qb = new HqlQueryBuilder();
-        qb.select("patientId", "uuid").from(Patient.class, "p");
-        qb.whereIdIn("p.patientId", evaluatedCohort.getMemberIds());
-		List<Patient> ret = new ArrayList<Patient>();
+		HqlQueryBuilder qb = new HqlQueryBuilder();
+		qb.select("patientId", "uuid").from(Patient.class, "p");
+		qb.whereIdIn("p.patientId", patientIds);
+		List<Patient> ret = new ArrayList<Patient>(patientIds.size());
 		for (Object[] row : Context.getService(EvaluationService.class).evaluateToList(qb, new EvaluationContext())) {
 			Patient pt = new Patient((Integer) row[0]);
 			pt.setUuid((String) row[1]);
@@ -247,4 +418,9 @@ public class EvaluatedCohortResource extends EvaluatedResource<EvaluatedCohort>
 		return evaluatedCohort.size();
 	}
 
+	@PropertyGetter("bitmap")
+	public String getBitmap(EvaluatedCohort evaluatedCohort) {
+		return RoaringBitmapCodec.encode(evaluatedCohort.getMemberIds());
+	}
+
 }
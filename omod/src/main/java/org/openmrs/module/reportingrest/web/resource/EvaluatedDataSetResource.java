@@ -20,39 +20,50 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.cohort.Cohorts;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.dataset.DataSet;
 import org.openmrs.module.reporting.dataset.DataSetColumn;
 import org.openmrs.module.reporting.dataset.DataSetMetaData;
 import org.openmrs.module.reporting.dataset.DataSetRow;
 import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.definition.DefinitionContext;
 import org.openmrs.module.reporting.evaluation.Evaluated;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.indicator.IndicatorResult;
 import org.openmrs.module.reporting.query.IdSet;
 import org.openmrs.module.reporting.serializer.ReportingSerializer;
+import org.openmrs.module.reportingrest.util.DefinitionCopier;
+import org.openmrs.module.reportingrest.web.JsonLinesWriter;
+import org.openmrs.module.reportingrest.web.PagedDataSet;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.ConversionUtil;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.annotation.PropertyGetter;
 import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.representation.DefaultRepresentation;
+import org.openmrs.module.webservices.rest.web.representation.NamedRepresentation;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
 import org.openmrs.module.webservices.rest.web.resource.impl.DelegatingResourceDescription;
 import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
 import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOperationException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
-import org.springframework.util.StringUtils;
 
-import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 
 /**
  * {@link Resource} for evaluating {@link DataSetDefinition}s
@@ -63,6 +74,11 @@ public class EvaluatedDataSetResource extends EvaluatedResource<DataSet> {
 	
 	private static Log log = LogFactory.getLog(EvaluatedDataSetResource.class);
 
+	/**
+	 * Named representation (?v=columnar) that sends the column metadata once, and then one array of values per column
+	 */
+	public static final String COLUMNAR_REPRESENTATION = "columnar";
+
 	@Override
 	public Object retrieve(String uuid, RequestContext requestContext)
 			throws ResponseException {
@@ -74,11 +90,10 @@ public class EvaluatedDataSetResource extends EvaluatedResource<DataSet> {
 		}
 
 		EvaluationContext evalContext = getEvaluationContextWithParameters(definition, requestContext, null, null);
-		evaluateAndSetBaseCohort(requestContext, evalContext);
+		evaluateAndSetBaseCohort(requestContext, evalContext, null);
 
 		try {
-			DataSet dataSet = (DataSet) evaluate(definition, dataSetDefinitionService, evalContext);
-			return asRepresentation(dataSet, requestContext.getRepresentation());
+			return evaluateAndConvert(definition, evalContext, requestContext);
 		} catch (EvaluationException ex) {
 			throw new IllegalArgumentException(ex);
 		}
@@ -102,36 +117,139 @@ public class EvaluatedDataSetResource extends EvaluatedResource<DataSet> {
 		}
 		
 		EvaluationContext evalContext = getEvaluationContextWithParameters(definition, requestContext, null, postBody);
-		evaluateAndSetBaseCohort(requestContext, evalContext);
+		evaluateAndSetBaseCohort(requestContext, evalContext, postBody);
 		
 		try {
-			DataSet dataSet = (DataSet) evaluate(definition, dataSetDefinitionService, evalContext);
-			return asRepresentation(dataSet, requestContext.getRepresentation());
+			return evaluateAndConvert(definition, evalContext, requestContext);
 		} catch (EvaluationException ex) {
 			throw new IllegalArgumentException(ex);
 		}
 	}
+
+	private Object evaluateAndConvert(DataSetDefinition definition, EvaluationContext evalContext,
+	                                  RequestContext requestContext) throws EvaluationException {
+		return evaluateNowOrLater(definition, evalContext, requestContext, new Evaluation<DataSetDefinition>() {
+
+			@Override
+			public Object evaluateAndConvert(DataSetDefinition definition, EvaluationContext evalContext,
+			                                 RequestContext requestContext) throws EvaluationException {
+				return evaluatePage(definition, DefinitionContext.getDataSetDefinitionService(), evalContext, requestContext);
+			}
+		});
+	}
+
+	/**
+	 * Evaluates the definition, and converts it. If the client asked for a page of rows (with startIndex and/or limit)
+	 * only that page is returned, along with the total count and next/prev links.
+	 * <p>
+	 * For patient data sets the page is pushed into evaluation: we figure out which patients the data set would have
+	 * rows for, and only evaluate the columns for the patients on the requested page. For other data sets we cannot tell
+	 * which rows we'll get in advance, so we evaluate fully and only convert the requested page. The same goes for patient
+	 * data sets with sort criteria, since their rows are not in patient id order.
+	 * (EvaluationContext.setLimit does not help here, since it has no offset and would hide the total count.)
+	 */
+	private Object evaluatePage(DataSetDefinition definition, DataSetDefinitionService dataSetDefinitionService,
+	                            EvaluationContext evalContext, RequestContext requestContext) throws EvaluationException {
+		if (!isPagingRequested(requestContext)) {
+			DataSet dataSet = (DataSet) evaluate(definition, dataSetDefinitionService, evalContext, requestContext);
+			return asRepresentationOrStream(dataSet, requestContext);
+		}
+
+		int startIndex = requestContext.getStartIndex();
+		int limit = requestContext.getLimit();
+		PagedDataSet page;
+		if (definition instanceof PatientDataSetDefinition && !isSorted((PatientDataSetDefinition) definition)) {
+			int totalCount = restrictBaseCohortToPage((PatientDataSetDefinition) definition, evalContext, startIndex, limit);
+			// the patients on the page have already passed the row filters, so we don't evaluate them again
+			PatientDataSetDefinition unfiltered = DefinitionCopier.copy((PatientDataSetDefinition) definition);
+			unfiltered.getRowFilters().clear();
+			DataSet dataSet = (DataSet) evaluate(unfiltered, dataSetDefinitionService, evalContext, requestContext);
+			page = new PagedDataSet(dataSet, 0, limit, totalCount);
+		} else {
+			DataSet dataSet = (DataSet) evaluate(definition, dataSetDefinitionService, evalContext, requestContext);
+			page = new PagedDataSet(dataSet, startIndex, limit);
+		}
+
+		Object converted = asRepresentationOrStream(page, requestContext);
+		if (converted instanceof SimpleObject) {
+			addPagingInfo((SimpleObject) converted, requestContext, page.getTotalCount(),
+					page.getTotalCount() > startIndex + limit);
+		}
+		return converted;
+	}
+
+	private boolean isSorted(PatientDataSetDefinition definition) {
+		return definition.getSortCriteria() != null && !definition.getSortCriteria().getSortElements().isEmpty();
+	}
+
+	/**
+	 * Works out which patients a patient data set has rows for (the base cohort, or all patients, restricted by the
+	 * row filters), and sets the base cohort to just those on the requested page. The row filters must then not be
+	 * evaluated again against that base cohort.
+	 *
+	 * @return the total number of rows in the un-paged data set
+	 */
+	private int restrictBaseCohortToPage(PatientDataSetDefinition definition, EvaluationContext evalContext,
+	                                     int startIndex, int limit) throws EvaluationException {
+		Cohort baseCohort = evalContext.getBaseCohort();
+		if (baseCohort == null) {
+			baseCohort = Cohorts.allPatients(evalContext);
+		}
+		SortedSet<Integer> memberIds = new TreeSet<Integer>(baseCohort.getMemberIds());
+		CohortDefinitionService cohortDefinitionService = DefinitionContext.getCohortDefinitionService();
+		for (Mapped<? extends CohortDefinition> rowFilter : definition.getRowFilters()) {
+			memberIds.retainAll(cohortDefinitionService.evaluate(rowFilter, evalContext).getMemberIds());
+		}
+
+		List<Integer> pageIds = new ArrayList<Integer>(Math.min(limit, memberIds.size()));
+		int index = 0;
+		for (Integer memberId : memberIds) {
+			if (index >= startIndex + limit) {
+				break;
+			}
+			if (index >= startIndex) {
+				pageIds.add(memberId);
+			}
+			++index;
+		}
+		evalContext.setBaseCohort(new Cohort(pageIds));
+		return memberIds.size();
+	}
 	
 	/**
-	 * If there is a "cohort" parameter in the request, use that to look for a CohortDefinition to run against, otherwise
-	 * we'll use all patients
+	 * If the client asked for a streamed response (see {@link JsonLinesWriter#isRequested(RequestContext)}) the rows
+	 * are written directly to the response, one JSON object per line, and null is returned. Otherwise this returns the
+	 * usual representation.
+	 * @param dataSet
 	 * @param requestContext
-	 * @param evalContext
+	 * @return
 	 */
-	private void evaluateAndSetBaseCohort(RequestContext requestContext, EvaluationContext evalContext) {
-		HttpServletRequest httpRequest = requestContext.getRequest();
-		
-		String cohortUniqueId = httpRequest.getParameter("cohort");
-		if (StringUtils.hasLength(cohortUniqueId)) {
-			try {
-				EvaluatedCohort cohort = new EvaluatedCohortResource().getEvaluatedCohort(cohortUniqueId, requestContext, "cohort.");
-				evalContext.setBaseCohort(cohort);
-			} catch (EvaluationException ex) {
-				throw new IllegalStateException("Failed to evaluated cohort", ex);
+	private Object asRepresentationOrStream(DataSet dataSet, RequestContext requestContext) {
+		if (!JsonLinesWriter.isRequested(requestContext)) {
+			return asRepresentation(dataSet, requestContext.getRepresentation());
+		}
+		if (requestContext.getResponse() == null) {
+			throw new IllegalStateException("Cannot stream rows without a response");
+		}
+		try {
+			JsonLinesWriter writer = new JsonLinesWriter(requestContext.getResponse());
+			Iterator<DataSetRow> iterator = dataSet.iterator();
+			while (iterator.hasNext()) {
+				DataSetRow row = iterator.next();
+				Map<String, Object> rowMap = new LinkedHashMap<String, Object>();
+				for (Map.Entry<DataSetColumn, Object> rowEntry : row.getColumnValues().entrySet()) {
+					Object value = convertColumnValue(rowEntry.getValue());
+					rowMap.put(rowEntry.getKey().getName(), ConversionUtil.convertToRepresentation(value, Representation.REF));
+				}
+				writer.write(rowMap);
 			}
+			writer.close();
+		} catch (IOException ex) {
+			throw new IllegalStateException("Error streaming data set rows", ex);
 		}
+		return null;
 	}
-	
+
 	/**
 	 * We let the user POST the serialized XML version of a Definition to this resource in order to evaluate a non-saved
 	 * definition on the fly.
@@ -172,6 +290,14 @@ public class EvaluatedDataSetResource extends EvaluatedResource<DataSet> {
 			description.addProperty("definition");
 			description.addSelfLink();
 		}
+		else if (rep instanceof NamedRepresentation && COLUMNAR_REPRESENTATION.equals(rep.getRepresentation())) {
+			description = new DelegatingResourceDescription();
+			description.addProperty("uuid"); // see @PropertyGetter method below
+			description.addProperty("metadata"); // remapped property
+			description.addProperty("columnValues"); // see @PropertyGetter method below
+			description.addProperty("definition");
+			description.addSelfLink();
+		}
 
 		return description;
 	}
@@ -224,27 +350,7 @@ public class EvaluatedDataSetResource extends EvaluatedResource<DataSet> {
 			DataSetRow row = iterator.next();
 			Map<String, Object> rowMap = new HashMap<String, Object>();
 			for (Map.Entry<DataSetColumn, Object> rowEntry : row.getColumnValues().entrySet()) {
-                Object value = rowEntry.getValue();
-
-                // If the value we return has any pointers to hibernate proxies, conversion to JSON will fail when we
-                // try to return it to the client. If we pass through an indicator result with an EvaluationContext,
-                // its cache will likely contain hibernate proxies an break things. So we just return the numeric value,
-                // and not the pointers to how we evaluated things. (Plus I don't think we really should be sending mor
-                // than the value back anyway.)
-                if (value instanceof IndicatorResult) {
-                    value = ((IndicatorResult) value).getValue();
-                }
-                else if (value instanceof IdSet) {
-                    IdSet idSet = (IdSet) value;
-                    value = new SimpleObject().add("size", idSet.getSize()).add("memberIds", idSet.getMemberIds());
-                }
-                else if (value instanceof Cohort) {
-                    // EvaluatedCohort implements IdSet, but Cohort doesn't
-                    Cohort cohort = (Cohort) value;
-                    value = new SimpleObject().add("size", cohort.size()).add("memberIds", cohort.getMemberIds());
-                }
-
-                rowMap.put(rowEntry.getKey().getName(), value);
+				rowMap.put(rowEntry.getKey().getName(), convertColumnValue(rowEntry.getValue()));
 			}
 			rows.add(rowMap);
 		}
@@ -252,6 +358,58 @@ public class EvaluatedDataSetResource extends EvaluatedResource<DataSet> {
 		return rows;
 	}
 
+	/**
+	 * returns [ [ val1, val1a ], [ val2, val2a ] ], i.e. one list per column, in the same order as the columns in
+	 * {@link DataSetMetaDataConverter}
+	 *
+	 * @param dataSet the delegate
+	 * @return a list of values for each column
+	 */
+	@PropertyGetter("columnValues")
+	public List<List<Object>> getColumnValuesOfDataSetDefinition(DataSet dataSet) {
+		List<DataSetColumn> columns = dataSet.getMetaData().getColumns();
+		List<List<Object>> columnValues = new ArrayList<List<Object>>(columns.size());
+		for (int i = 0; i < columns.size(); ++i) {
+			columnValues.add(new ArrayList<Object>());
+		}
+
+		Iterator<DataSetRow> iterator = dataSet.iterator();
+		while (iterator.hasNext()) {
+			Map<DataSetColumn, Object> rowValues = iterator.next().getColumnValues();
+			for (int i = 0; i < columns.size(); ++i) {
+				columnValues.get(i).add(convertColumnValue(rowValues.get(columns.get(i))));
+			}
+		}
+
+		return columnValues;
+	}
+
+	/**
+	 * If the value we return has any pointers to hibernate proxies, conversion to JSON will fail when we
+	 * try to return it to the client. If we pass through an indicator result with an EvaluationContext,
+	 * its cache will likely contain hibernate proxies an break things. So we just return the numeric value,
+	 * and not the pointers to how we evaluated things. (Plus I don't think we really should be sending mor
+	 * than the value back anyway.)
+	 *
+	 * @param value a value from a data set row
+	 * @return the value that should be sent to the client
+	 */
+	private Object convertColumnValue(Object value) {
+		if (value instanceof IndicatorResult) {
+			value = ((IndicatorResult) value).getValue();
+		}
+		else if (value instanceof IdSet) {
+			IdSet idSet = (IdSet) value;
+			value = new SimpleObject().add("size", idSet.getSize()).add("memberIds", idSet.getMemberIds());
+		}
+		else if (value instanceof Cohort) {
+			// EvaluatedCohort implements IdSet, but Cohort doesn't
+			Cohort cohort = (Cohort) value;
+			value = new SimpleObject().add("size", cohort.size()).add("memberIds", cohort.getMemberIds());
+		}
+		return value;
+	}
+
     /**
      * Maps "metaData" property to "metadata"
      *
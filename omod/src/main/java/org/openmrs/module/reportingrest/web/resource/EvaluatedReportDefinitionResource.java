@@ -6,9 +6,10 @@ import io.swagger.models.properties.StringProperty;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.dataset.DataSet;
 import org.openmrs.module.reporting.definition.DefinitionContext;
+import org.openmrs.module.reporting.definition.service.DefinitionService;
+import org.openmrs.module.reporting.evaluation.Definition;
 import org.openmrs.module.reporting.evaluation.Evaluated;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
@@ -16,6 +17,8 @@ import org.openmrs.module.reporting.report.ReportData;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
 import org.openmrs.module.reporting.serializer.ReportingSerializer;
+import org.openmrs.module.reportingrest.async.ParallelDataSetEvaluator;
+import org.openmrs.module.reportingrest.web.PagedDataSet;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
@@ -27,11 +30,11 @@ import org.openmrs.module.webservices.rest.web.resource.impl.DelegatingResourceD
 import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
 import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOperationException;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
-import org.springframework.util.StringUtils;
 
-import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -109,11 +112,10 @@ public class EvaluatedReportDefinitionResource extends EvaluatedResource<ReportD
 	    }
 
         EvaluationContext evalContext = getEvaluationContextWithParameters(definition, requestContext, null, null);
-        evaluateAndSetBaseCohort(requestContext, evalContext);
+        evaluateAndSetBaseCohort(requestContext, evalContext, null);
 
         try {
-            ReportData reportData = (ReportData) evaluate(definition, reportDefinitionService, evalContext);
-            return asRepresentation(reportData, requestContext.getRepresentation());
+            return evaluateAndConvert(definition, evalContext, requestContext);
         } catch (EvaluationException e) {
             throw new RuntimeException("Failed to evaluate report definition", e);
         }
@@ -128,31 +130,61 @@ public class EvaluatedReportDefinitionResource extends EvaluatedResource<ReportD
         }
     
         EvaluationContext evalContext = getEvaluationContextWithParameters(definition, requestContext, null, postBody);
-        evaluateAndSetBaseCohort(requestContext, evalContext);
+        evaluateAndSetBaseCohort(requestContext, evalContext, postBody);
     
         try {
-            ReportData reportData = (ReportData) evaluate(definition, reportDefinitionService, evalContext);
-            return asRepresentation(reportData, requestContext.getRepresentation());
+            return evaluateAndConvert(definition, evalContext, requestContext);
         } catch (EvaluationException e) {
             throw new RuntimeException("Failed to evaluate report definition", e);
         }
     }
     
-    private void evaluateAndSetBaseCohort(RequestContext requestContext, EvaluationContext evalContext) {
-        HttpServletRequest httpRequest = requestContext.getRequest();
-        
-        // if there is a "cohort" parameter, use that to look for a CohortDefinition to run against, otherwise all patients
-        String cohortUuid = httpRequest.getParameter("cohort");
-        if (StringUtils.hasLength(cohortUuid)) {
-            try {
-                EvaluatedCohort cohort = new EvaluatedCohortResource().getEvaluatedCohort(cohortUuid, requestContext, "cohort.");
-                evalContext.setBaseCohort(cohort);
-            } catch (EvaluationException ex) {
-                throw new IllegalStateException("Failed to evaluated cohort", ex);
+    private Object evaluateAndConvert(ReportDefinition definition, EvaluationContext evalContext,
+                                      RequestContext requestContext) throws EvaluationException {
+        return evaluateNowOrLater(definition, evalContext, requestContext, new Evaluation<ReportDefinition>() {
+
+            @Override
+            public Object evaluateAndConvert(ReportDefinition definition, EvaluationContext evalContext,
+                                             RequestContext requestContext) throws EvaluationException {
+                ReportData reportData = (ReportData) evaluate(definition, DefinitionContext.getReportDefinitionService(), evalContext, requestContext);
+                return asPagedRepresentation(reportData, requestContext);
             }
+        });
+    }
+
+    /**
+     * If the client asked for a page of rows (with startIndex and/or limit) each data set is limited to that page, and
+     * totalCount holds the total number of rows of each data set, by data set name. The next link is present if any of
+     * the data sets has more rows.
+     */
+    private Object asPagedRepresentation(ReportData reportData, RequestContext requestContext) {
+        if (!isPagingRequested(requestContext)) {
+            return asRepresentation(reportData, requestContext.getRepresentation());
         }
+
+        int startIndex = requestContext.getStartIndex();
+        int limit = requestContext.getLimit();
+        Map<String, DataSet> pagedDataSets = new LinkedHashMap<String, DataSet>();
+        Map<String, Integer> totalCounts = new LinkedHashMap<String, Integer>();
+        boolean hasMoreResults = false;
+        for (Map.Entry<String, DataSet> entry : reportData.getDataSets().entrySet()) {
+            PagedDataSet page = new PagedDataSet(entry.getValue(), startIndex, limit);
+            pagedDataSets.put(entry.getKey(), page);
+            totalCounts.put(entry.getKey(), page.getTotalCount());
+            hasMoreResults = hasMoreResults || page.hasMoreResults();
+        }
+
+        // don't modify the evaluated ReportData itself
+        ReportData paged = new ReportData();
+        paged.setDefinition(reportData.getDefinition());
+        paged.setContext(reportData.getContext());
+        paged.setDataSets(pagedDataSets);
+
+        SimpleObject representation = (SimpleObject) asRepresentation(paged, requestContext.getRepresentation());
+        addPagingInfo(representation, requestContext, totalCounts, hasMoreResults);
+        return representation;
     }
-    
+
     /**
      * We let the user POST the serialized XML version of a Definition to this resource in order to evaluate a non-saved
      * definition on the fly.
@@ -181,6 +213,18 @@ public class EvaluatedReportDefinitionResource extends EvaluatedResource<ReportD
         }
     }
 
+    /**
+     * Evaluates the data sets in parallel, if this is enabled, see {@link ParallelDataSetEvaluator}
+     */
+    @Override
+    protected <Def extends Definition> Evaluated<Def> doEvaluate(Def definition, DefinitionService<Def> svc, EvaluationContext ctx) throws EvaluationException {
+        ParallelDataSetEvaluator parallelEvaluator = Context.getRegisteredComponents(ParallelDataSetEvaluator.class).get(0);
+        if (definition instanceof ReportDefinition && parallelEvaluator.isEnabledFor((ReportDefinition) definition)) {
+            return (Evaluated<Def>) parallelEvaluator.evaluate((ReportDefinition) definition, ctx);
+        }
+        return super.doEvaluate(definition, svc, ctx);
+    }
+
     @Override
     public ReportData newDelegate() {
         return new ReportData();
@@ -1,5 +1,6 @@
 package org.openmrs.module.reportingrest.web.resource;
 
+import org.openmrs.Cohort;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.definition.library.AllDefinitionLibraries;
 import org.openmrs.module.reporting.definition.service.DefinitionService;
@@ -8,10 +9,24 @@ import org.openmrs.module.reporting.evaluation.Evaluated;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.module.reportingrest.async.EvaluationJob;
+import org.openmrs.module.reportingrest.async.EvaluationJobManager;
+import org.openmrs.module.reportingrest.cache.CachedEvaluation;
+import org.openmrs.module.reportingrest.cache.DefinitionCache;
+import org.openmrs.module.reportingrest.cache.EvaluationCacheKey;
+import org.openmrs.module.reportingrest.cache.EvaluationDetacher;
+import org.openmrs.module.reportingrest.cache.EvaluationResultCache;
+import org.openmrs.module.reportingrest.cache.ExpiringLruCache;
+import org.openmrs.module.reportingrest.cache.SingleFlight;
+import org.openmrs.module.reportingrest.util.RoaringBitmapCodec;
+import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.ConversionUtil;
+import org.openmrs.module.webservices.rest.web.Hyperlink;
 import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.RestConstants;
 import org.openmrs.module.webservices.rest.web.annotation.PropertyGetter;
+import org.openmrs.module.webservices.rest.web.annotation.Resource;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
 import org.openmrs.module.webservices.rest.web.resource.api.Retrievable;
 import org.openmrs.module.webservices.rest.web.resource.impl.DelegatingCrudResource;
@@ -25,13 +40,49 @@ import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Common functionality for resources that evaluate definitions
  */
 public abstract class EvaluatedResource<T extends Evaluated> extends DelegatingCrudResource<T> implements Retrievable {
 
+    /**
+     * Evaluations currently in progress, across all resources, so that concurrent identical requests are only evaluated once
+     */
+    private static final SingleFlight<String, Object> inFlightEvaluations = new SingleFlight<String, Object>();
+
+    /**
+     * Request parameter (?async=true) to evaluate in the background, see {@link #evaluateNowOrLater}
+     */
+    public static final String ASYNC_PARAMETER = "async";
+
+    /**
+     * Request parameter with the uuid of a cohort definition to use as base cohort
+     */
+    public static final String BASE_COHORT_PARAMETER = "cohort";
+
+    /**
+     * Request parameter (or POST body property) with a base cohort, encoded by {@link RoaringBitmapCodec}
+     */
+    public static final String BASE_COHORT_BITMAP_PARAMETER = "cohortBitmap";
+
+    private volatile AllDefinitionLibraries definitionLibraries;
+
+    private volatile DefinitionCache definitionCache;
+
+    private volatile EvaluationDetacher evaluationDetacher;
+
+    /**
+     * Evaluates, and converts the result for the given request context
+     */
+    protected interface Evaluation<Def extends Definition> {
+
+        Object evaluateAndConvert(Def definition, EvaluationContext evalContext, RequestContext requestContext) throws EvaluationException;
+    }
+
     /**
      * @param evaluated the delegate
      * @return the uuid of the definition that is defined on this object
@@ -168,17 +219,336 @@ public abstract class EvaluatedResource<T extends Evaluated> extends DelegatingC
         }
     }
 
+    /**
+     * Sets the base cohort to evaluate against, if the client specified one with either (or both) of these request
+     * parameters (or properties of postBody):
+     * <ul>
+     *     <li>cohort: the uuid of a cohort definition, which is evaluated with parameters prefixed by "cohort."</li>
+     *     <li>cohortBitmap: the member ids as a base64 Roaring bitmap, like the cohort resource returns with v=bitmap</li>
+     * </ul>
+     * Otherwise we'll use all patients.
+     *
+     * @param requestContext
+     * @param evalContext
+     * @param postBody optional
+     */
+    protected void evaluateAndSetBaseCohort(RequestContext requestContext, EvaluationContext evalContext, SimpleObject postBody) {
+        HttpServletRequest httpRequest = requestContext.getRequest();
+
+        Cohort baseCohort = null;
+        String cohortUniqueId = httpRequest.getParameter(BASE_COHORT_PARAMETER);
+        if (StringUtils.hasLength(cohortUniqueId)) {
+            try {
+                baseCohort = new EvaluatedCohortResource().getEvaluatedCohort(cohortUniqueId, requestContext, BASE_COHORT_PARAMETER + ".");
+            } catch (EvaluationException ex) {
+                throw new IllegalStateException("Failed to evaluated cohort", ex);
+            }
+        }
+
+        String bitmap = httpRequest.getParameter(BASE_COHORT_BITMAP_PARAMETER);
+        if (bitmap == null && postBody != null && postBody.get(BASE_COHORT_BITMAP_PARAMETER) != null) {
+            bitmap = postBody.get(BASE_COHORT_BITMAP_PARAMETER).toString();
+        }
+        if (StringUtils.hasLength(bitmap)) {
+            Set<Integer> memberIds = RoaringBitmapCodec.decode(bitmap);
+            if (baseCohort != null) {
+                memberIds.retainAll(baseCohort.getMemberIds());
+            }
+            baseCohort = new Cohort(memberIds);
+        }
+
+        if (baseCohort != null) {
+            evalContext.setBaseCohort(baseCohort);
+        }
+    }
+
+    /**
+     * @param requestContext
+     * @return true if the client asked for a single page of results, with startIndex and/or limit
+     */
+    protected boolean isPagingRequested(RequestContext requestContext) {
+        HttpServletRequest request = requestContext.getRequest();
+        return request != null && (request.getParameter(RestConstants.REQUEST_PROPERTY_FOR_START_INDEX) != null
+                || request.getParameter(RestConstants.REQUEST_PROPERTY_FOR_LIMIT) != null);
+    }
+
+    /**
+     * Adds totalCount, and next/prev links, to a representation, the same way AlreadyPaged does
+     *
+     * @param representation
+     * @param requestContext
+     * @param totalCount
+     * @param hasMoreResults
+     */
+    protected void addPagingInfo(SimpleObject representation, RequestContext requestContext, Object totalCount, boolean hasMoreResults) {
+        representation.add("totalCount", totalCount);
+        List<Hyperlink> links = (List<Hyperlink>) representation.get("links");
+        if (links == null) {
+            links = new ArrayList<Hyperlink>();
+            representation.add("links", links);
+        }
+        if (hasMoreResults) {
+            links.add(new Hyperlink("next", requestContext.getNextLink()));
+        }
+        if (requestContext.getStartIndex() > 0) {
+            links.add(new Hyperlink("prev", requestContext.getPreviousLink()));
+        }
+    }
+
+    /**
+     * @param svc
+     * @param clazz
+     * @param uniqueId the key of a library definition, or the uuid of a saved definition
+     * @return the definition, from a definition library, or else from the {@link DefinitionCache}, so that the caller
+     * gets its own copy in either case
+     */
     protected <Def extends Definition> Def getDefinitionByUniqueId(DefinitionService<Def> svc, Class<Def> clazz, String uniqueId) {
-        AllDefinitionLibraries definitionLibraries = Context.getRegisteredComponents(AllDefinitionLibraries.class).get(0);
-        Def definition = definitionLibraries.getDefinition(clazz, uniqueId);
+        Def definition = getDefinitionLibraries().getDefinition(clazz, uniqueId);
         if (definition == null) {
-            definition = svc.getDefinitionByUuid(uniqueId);
+            definition = getDefinitionCache().getDefinition(clazz, svc, uniqueId);
         }
         return definition;
     }
 
+    /**
+     * Looked up once, since it is needed for every request, and looking up a component means going through the whole
+     * application context
+     */
+    private AllDefinitionLibraries getDefinitionLibraries() {
+        if (definitionLibraries == null) {
+            definitionLibraries = Context.getRegisteredComponents(AllDefinitionLibraries.class).get(0);
+        }
+        return definitionLibraries;
+    }
+
+    private DefinitionCache getDefinitionCache() {
+        if (definitionCache == null) {
+            definitionCache = Context.getRegisteredComponents(DefinitionCache.class).get(0);
+        }
+        return definitionCache;
+    }
+
+    private EvaluationDetacher getEvaluationDetacher() {
+        if (evaluationDetacher == null) {
+            evaluationDetacher = Context.getRegisteredComponents(EvaluationDetacher.class).get(0);
+        }
+        return evaluationDetacher;
+    }
+
+    /**
+     * Like {@link #evaluate(Definition, DefinitionService, EvaluationContext)} but goes through the
+     * {@link EvaluationResultCache} if it is enabled for this resource. If requestContext has a response, the Cache-Control,
+     * ETag and X-Cache headers are set on it.
+     * <p>
+     * If an identical evaluation (same resource and cache key) is already in progress in another thread, this waits for it
+     * and shares its result instead of evaluating again. This applies whether or not the cache is enabled.
+     *
+     * @param definition
+     * @param svc
+     * @param ctx
+     * @param requestContext may be null, e.g. when evaluating a base cohort for another resource
+     * @return
+     * @throws EvaluationException
+     */
+    protected <Def extends Definition> Evaluated<Def> evaluate(final Def definition, final DefinitionService<Def> svc, final EvaluationContext ctx,
+                                                               RequestContext requestContext) throws EvaluationException {
+        if (definition.getUuid() == null) {
+            return evaluate(definition, svc, ctx);
+        }
+
+        final String key = EvaluationCacheKey.build(definition, ctx);
+        final String inFlightKey = getResourceName() + "|" + key;
+        final ExpiringLruCache<String, CachedEvaluation> cache = getResultCache();
+        if (cache == null) {
+            SharedEvaluation shared = (SharedEvaluation) evaluateOnce(inFlightKey, new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    Evaluated<Def> evaluated = evaluate(definition, svc, ctx);
+                    return new SharedEvaluation(evaluated, getEvaluationDetacher().detach(evaluated), null);
+                }
+            });
+            return getSharedResult(shared, definition, svc, ctx);
+        }
+
+        CachedEvaluation cached = cache.get(key);
+        // a count-only entry doesn't help here, so we evaluate and replace it
+        if (cached != null && !cached.isCountOnly()) {
+            setCacheHeaders(requestContext, cache, key, cached, true);
+            return (Evaluated<Def>) getEvaluationDetacher().attach(cached.getEvaluated());
+        }
+
+        SharedEvaluation shared = (SharedEvaluation) evaluateOnce(inFlightKey, new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                Evaluated<Def> evaluated = evaluate(definition, svc, ctx);
+                // the context's cache holds intermediate results that we don't need to keep around
+                if (evaluated.getContext() != null) {
+                    evaluated.getContext().clearCache();
+                }
+                // the cache outlives this request's Hibernate session, so it gets a copy without persistent objects
+                Evaluated<?> detached = getEvaluationDetacher().detach(evaluated);
+                CachedEvaluation entry = new CachedEvaluation(key, detached != null ? detached : evaluated);
+                if (detached != null) {
+                    cache.put(key, entry);
+                }
+                return new SharedEvaluation(evaluated, detached, entry);
+            }
+        });
+
+        setCacheHeaders(requestContext, cache, key, shared.entry, false);
+        return getSharedResult(shared, definition, svc, ctx);
+    }
+
+    /**
+     * The thread that evaluated gets the result itself. Threads that waited for it get a copy loaded in their own
+     * session, since the result refers to persistent objects in the evaluating thread's session. If it could not be
+     * detached from that session, they evaluate again.
+     */
+    private <Def extends Definition> Evaluated<Def> getSharedResult(SharedEvaluation shared, Def definition,
+                                                                    DefinitionService<Def> svc, EvaluationContext ctx)
+            throws EvaluationException {
+        if (shared.evaluatedBy == Thread.currentThread()) {
+            return (Evaluated<Def>) shared.evaluated;
+        }
+        if (shared.detached == null) {
+            return evaluate(definition, svc, ctx);
+        }
+        return (Evaluated<Def>) getEvaluationDetacher().attach(shared.detached);
+    }
+
+    /**
+     * @return the result cache for this resource, or null if caching is disabled for it
+     */
+    protected ExpiringLruCache<String, CachedEvaluation> getResultCache() {
+        return Context.getRegisteredComponents(EvaluationResultCache.class).get(0).getCache(getResourceName());
+    }
+
+    /**
+     * Sets the ETag, Cache-Control and X-Cache headers for a result that went through the cache
+     *
+     * @param requestContext may be null, or have no response, in which case this does nothing
+     * @param cache
+     * @param key
+     * @param cached
+     * @param hit
+     */
+    protected void setCacheHeaders(RequestContext requestContext, ExpiringLruCache<String, CachedEvaluation> cache, String key,
+                                   CachedEvaluation cached, boolean hit) {
+        HttpServletResponse response = requestContext == null ? null : requestContext.getResponse();
+        if (response != null) {
+            response.setHeader("ETag", cached.getEtag());
+            response.setHeader("Cache-Control", "private, max-age=" + cache.getMillisToLive(key) / 1000);
+            response.setHeader("X-Cache", hit ? "HIT" : "MISS");
+        }
+    }
+
+    /**
+     * Runs evaluation, unless an identical one (same inFlightKey) is already in progress, in which case this waits for
+     * it and returns its result
+     *
+     * @param inFlightKey
+     * @param evaluation
+     * @return
+     * @throws EvaluationException
+     */
+    protected Object evaluateOnce(String inFlightKey, Callable<Object> evaluation) throws EvaluationException {
+        try {
+            return inFlightEvaluations.execute(inFlightKey, evaluation);
+        }
+        catch (EvaluationException ex) {
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            throw ex;
+        }
+        catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Runs evaluation right away, unless the client asked for ?async=true. In that case it is submitted to the
+     * {@link EvaluationJobManager}, the response status is set to 202, and the job's representation is returned so the
+     * client can poll for the result.
+     * <p>
+     * The HTTP request is finished by the time an async evaluation runs, so it is given a request context without one,
+     * which means paging and streaming don't apply to async evaluations. The request's Hibernate session is closed by
+     * then too, so the job gets copies of the definition and evaluation context that are loaded in its own session.
+     *
+     * @param definition
+     * @param evalContext
+     * @param requestContext
+     * @param evaluation
+     * @return the converted result, or the representation of the job
+     * @throws EvaluationException
+     */
+    protected <Def extends Definition> Object evaluateNowOrLater(Def definition, EvaluationContext evalContext,
+                                                                 RequestContext requestContext, final Evaluation<Def> evaluation)
+            throws EvaluationException {
+        HttpServletRequest request = requestContext.getRequest();
+        if (request == null || !"true".equalsIgnoreCase(request.getParameter(ASYNC_PARAMETER))) {
+            return evaluation.evaluateAndConvert(definition, evalContext, requestContext);
+        }
+
+        final RequestContext detached = new RequestContext();
+        detached.setRepresentation(requestContext.getRepresentation());
+        final Def detachedDefinition = getEvaluationDetacher().detachCopy(definition);
+        final EvaluationContext detachedContext = getEvaluationDetacher().detachCopy(evalContext);
+        EvaluationJob job = Context.getRegisteredComponents(EvaluationJobManager.class).get(0).submit(getResourceName(),
+                definition.getUuid(), new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        EvaluationDetacher evaluationDetacher = getEvaluationDetacher();
+                        return evaluation.evaluateAndConvert(evaluationDetacher.attachCopy(detachedDefinition),
+                                evaluationDetacher.attachCopy(detachedContext), detached);
+                    }
+                });
+
+        if (requestContext.getResponse() != null) {
+            requestContext.getResponse().setStatus(HttpServletResponse.SC_ACCEPTED);
+        }
+        return ReportingRestController.asRepresentation(job);
+    }
+
+    /**
+     * The result of an evaluation, as shared with identical requests that waited for it
+     */
+    private static class SharedEvaluation {
+
+        private final Thread evaluatedBy = Thread.currentThread();
+
+        private final Evaluated<?> evaluated;
+
+        /**
+         * evaluated without persistent objects, or null if it cannot be detached
+         */
+        private final Evaluated<?> detached;
+
+        /**
+         * null if the cache is disabled
+         */
+        private final CachedEvaluation entry;
+
+        SharedEvaluation(Evaluated<?> evaluated, Evaluated<?> detached, CachedEvaluation entry) {
+            this.evaluated = evaluated;
+            this.detached = detached;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * @return the last part of this resource's name, e.g. "dataSet" for v1/reportingrest/dataSet
+     */
+    protected String getResourceName() {
+        String name = getClass().getAnnotation(Resource.class).name();
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
     protected <Def extends Definition> Evaluated<Def> evaluate(Def definition, DefinitionService<Def> svc, EvaluationContext ctx) throws EvaluationException {
-        Evaluated<Def> evaluated = svc.evaluate(definition, ctx);
+        Evaluated<Def> evaluated = doEvaluate(definition, svc, ctx);
 
         // there seems to be a bug in the reporting module that doesn't set these
         if (evaluated.getDefinition().getName() == null)
@@ -190,4 +560,11 @@ public abstract class EvaluatedResource<T extends Evaluated> extends DelegatingC
 
         return evaluated;
     }
+
+    /**
+     * Does the actual evaluation. Subclasses may override this to evaluate differently than the definition service does.
+     */
+    protected <Def extends Definition> Evaluated<Def> doEvaluate(Def definition, DefinitionService<Def> svc, EvaluationContext ctx) throws EvaluationException {
+        return svc.evaluate(definition, ctx);
+    }
 }
@@ -10,11 +10,14 @@
 package org.openmrs.module.reportingrest.web.resource;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.criterion.Restrictions;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.definition.DefinitionSummary;
 import org.openmrs.module.reporting.report.ReportRequest;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
-import org.openmrs.module.reporting.report.service.ReportService;
 import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
@@ -29,9 +32,14 @@ import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOp
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
 
 @Resource(name = RestConstants.VERSION_1 + ReportingRestController.REPORTING_REST_NAMESPACE + "/reportDefinitionsWithScheduledRequests",
     supportedClass = SimpleObject.class, supportedOpenmrsVersions = {"1.8.* - 9.9.*"})
@@ -70,12 +78,38 @@ public class ReportDefinitionsWithScheduledRequestsResource extends DelegatingCr
     throw new ResourceDoesNotSupportOperationException();
   }
 
+  /**
+   * Sorts and pages the definitions by their summaries, so that only the definitions on the requested page are
+   * deserialized, and then gets the scheduled requests of those definitions with one query. Unless the client asks for
+   * a page (with startIndex and/or limit), all definitions are returned, without paging info, as they always were.
+   */
   @Override
   protected PageableResult doGetAll(RequestContext context) throws ResponseException {
-    final List<ReportDefinition> reportDefinitions = getSortedReportDefinitions(context);
+    final List<DefinitionSummary> summaries = getSortedReportDefinitionSummaries(context);
+    boolean paged = isPagingRequested(context);
+    int from = paged ? Math.min(context.getStartIndex(), summaries.size()) : 0;
+    int to = paged ? Math.min(from + context.getLimit(), summaries.size()) : summaries.size();
+
+    List<ReportDefinition> reportDefinitions = new ArrayList<ReportDefinition>();
+    for (DefinitionSummary summary : summaries.subList(from, to)) {
+      ReportDefinition reportDefinition =
+          Context.getService(ReportDefinitionService.class).getDefinitionByUuid(summary.getUuid());
+      if (reportDefinition != null) {
+        reportDefinitions.add(reportDefinition);
+      }
+    }
     List<SimpleObject> scheduledReports = mergeScheduledReports(reportDefinitions);
 
-    return new AlreadyPaged<SimpleObject>(context, scheduledReports, false);
+    if (!paged) {
+      return new AlreadyPaged<SimpleObject>(context, scheduledReports, false);
+    }
+    return new AlreadyPaged<SimpleObject>(context, scheduledReports, to < summaries.size(), (long) summaries.size());
+  }
+
+  private boolean isPagingRequested(RequestContext context) {
+    HttpServletRequest request = context.getRequest();
+    return request != null && (request.getParameter(RestConstants.REQUEST_PROPERTY_FOR_START_INDEX) != null
+        || request.getParameter(RestConstants.REQUEST_PROPERTY_FOR_LIMIT) != null);
   }
 
   @Override
@@ -83,32 +117,77 @@ public class ReportDefinitionsWithScheduledRequestsResource extends DelegatingCr
     return doGetAll(context);
   }
 
-  private List<ReportDefinition> getSortedReportDefinitions(RequestContext context) {
-    final List<ReportDefinition> reportDefinitions =
-        Context.getService(ReportDefinitionService.class).getAllDefinitions(false);
+  private List<DefinitionSummary> getSortedReportDefinitionSummaries(RequestContext context) {
+    final List<DefinitionSummary> summaries =
+        new ArrayList<DefinitionSummary>(Context.getService(ReportDefinitionService.class).getAllDefinitionSummaries(false));
 
-    Collections.sort(reportDefinitions, getComparatorForRequestSorting(context));
-    return reportDefinitions;
+    Collections.sort(summaries, getComparatorForRequestSorting(context));
+    return summaries;
   }
 
   private List<SimpleObject> mergeScheduledReports(List<ReportDefinition> reportDefinitions) {
+    Map<String, List<ReportRequest>> scheduledRequestsByDefinition = getScheduledRequests(reportDefinitions);
     List<SimpleObject> scheduledReports = new ArrayList<SimpleObject>();
 
     for (ReportDefinition reportDefinition : reportDefinitions) {
-      List<ReportRequest> scheduledRequests = Context
-          .getService(ReportService.class)
-          .getReportRequests(reportDefinition, null, null, ReportRequest.Status.SCHEDULED,
-              ReportRequest.Status.SCHEDULE_COMPLETED);
+      List<ReportRequest> scheduledRequests = scheduledRequestsByDefinition.get(reportDefinition.getUuid());
 
       scheduledReports.add(new SimpleObject()
           .add("reportDefinition", reportDefinition)
-          .add("scheduledRequests", scheduledRequests));
+          .add("scheduledRequests", scheduledRequests == null ? new ArrayList<ReportRequest>() : scheduledRequests));
     }
 
     return scheduledReports;
   }
 
-  private Comparator<ReportDefinition> getComparatorForRequestSorting(RequestContext context) {
+  /**
+   * @param reportDefinitions
+   * @return the SCHEDULED and SCHEDULE_COMPLETED requests of reportDefinitions, by report definition uuid
+   */
+  private Map<String, List<ReportRequest>> getScheduledRequests(List<ReportDefinition> reportDefinitions) {
+    Map<String, List<ReportRequest>> scheduledRequests = new HashMap<String, List<ReportRequest>>();
+    if (reportDefinitions.isEmpty()) {
+      return scheduledRequests;
+    }
+    List<String> uuids = new ArrayList<String>();
+    for (ReportDefinition reportDefinition : reportDefinitions) {
+      uuids.add(reportDefinition.getUuid());
+    }
+
+    DbSession session = Context.getRegisteredComponents(DbSessionFactory.class).get(0).getCurrentSession();
+    List<Object[]> rows = session.createSQLQuery("select r.id, r.report_definition_uuid from reporting_report_request r"
+        + " where r.status in (:statuses) and r.report_definition_uuid in (:uuids) order by r.id")
+        .setParameterList("statuses", Arrays.asList(ReportRequest.Status.SCHEDULED.name(),
+            ReportRequest.Status.SCHEDULE_COMPLETED.name()))
+        .setParameterList("uuids", uuids)
+        .list();
+    if (rows.isEmpty()) {
+      return scheduledRequests;
+    }
+
+    Map<Integer, String> definitionUuidsByRequestId = new LinkedHashMap<Integer, String>();
+    for (Object[] row : rows) {
+      definitionUuidsByRequestId.put(((Number) row[0]).intValue(), (String) row[1]);
+    }
+    Map<Integer, ReportRequest> requestsById = new HashMap<Integer, ReportRequest>();
+    for (ReportRequest request : (List<ReportRequest>) session.createCriteria(ReportRequest.class)
+        .add(Restrictions.in("id", definitionUuidsByRequestId.keySet()))
+        .list()) {
+      requestsById.put(request.getId(), request);
+    }
+
+    for (Map.Entry<Integer, String> entry : definitionUuidsByRequestId.entrySet()) {
+      List<ReportRequest> forDefinition = scheduledRequests.get(entry.getValue());
+      if (forDefinition == null) {
+        forDefinition = new ArrayList<ReportRequest>();
+        scheduledRequests.put(entry.getValue(), forDefinition);
+      }
+      forDefinition.add(requestsById.get(entry.getKey()));
+    }
+    return scheduledRequests;
+  }
+
+  private Comparator<DefinitionSummary> getComparatorForRequestSorting(RequestContext context) {
     final String sortBy = context.getParameter("sortBy");
 
     if (StringUtils.isBlank(sortBy) || "id".equals(sortBy)) {
@@ -120,18 +199,18 @@ public class ReportDefinitionsWithScheduledRequestsResource extends DelegatingCr
     }
   }
 
-  private static class ById implements Comparator<ReportDefinition> {
+  private static class ById implements Comparator<DefinitionSummary> {
 
     @Override
-    public int compare(ReportDefinition reportDefinition1, ReportDefinition reportDefinition2) {
+    public int compare(DefinitionSummary reportDefinition1, DefinitionSummary reportDefinition2) {
       return reportDefinition1.getId().compareTo(reportDefinition2.getId());
     }
   }
 
-  private static class ByName implements Comparator<ReportDefinition> {
+  private static class ByName implements Comparator<DefinitionSummary> {
 
     @Override
-    public int compare(ReportDefinition reportDefinition1, ReportDefinition reportDefinition2) {
+    public int compare(DefinitionSummary reportDefinition1, DefinitionSummary reportDefinition2) {
       return reportDefinition1.getName().compareTo(reportDefinition2.getName());
     }
   }
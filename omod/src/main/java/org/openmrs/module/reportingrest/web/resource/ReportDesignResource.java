@@ -15,6 +15,7 @@ import org.openmrs.module.reporting.report.ReportDesign;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.cache.RenderingModeCache;
 import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestConstants;
@@ -71,12 +72,15 @@ public class ReportDesignResource extends DelegatingCrudResource<ReportDesign> {
 
   @Override
   public ReportDesign save(ReportDesign reportDesign) {
-    return getReportService().saveReportDesign(reportDesign);
+    ReportDesign saved = getReportService().saveReportDesign(reportDesign);
+    getRenderingModeCache().clear();
+    return saved;
   }
 
   @Override
   public void purge(ReportDesign reportDesign, RequestContext requestContext) throws ResponseException {
       getReportService().purgeReportDesign(reportDesign);
+      getRenderingModeCache().clear();
   }
 
   @Override
@@ -109,6 +113,10 @@ public class ReportDesignResource extends DelegatingCrudResource<ReportDesign> {
     return Context.getService(ReportService.class);
   }
 
+  private RenderingModeCache getRenderingModeCache() {
+    return Context.getRegisteredComponents(RenderingModeCache.class).get(0);
+  }
+
   private ReportDefinitionService getReportDefinitionService() {
     return Context.getService(ReportDefinitionService.class);
   }
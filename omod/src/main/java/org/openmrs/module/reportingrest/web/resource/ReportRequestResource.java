@@ -15,7 +15,11 @@ import io.swagger.models.properties.DateProperty;
 import io.swagger.models.properties.StringProperty;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.SQLQuery;
+import org.hibernate.criterion.Restrictions;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSession;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.definition.DefinitionContext;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
@@ -26,6 +30,8 @@ import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
 import org.openmrs.module.reporting.report.renderer.RenderingMode;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.async.ReportQueueDispatcher;
+import org.openmrs.module.reportingrest.cache.RenderingModeCache;
 import org.openmrs.module.reportingrest.web.controller.ReportingRestController;
 import org.openmrs.module.webservices.rest.web.ConversionUtil;
 import org.openmrs.module.webservices.rest.web.RequestContext;
@@ -84,32 +90,15 @@ public class ReportRequestResource extends DelegatingCrudResource<ReportRequest>
 		ReportService reportService = getReportService();
 		Integer pageNumber = context.getStartIndex();
 		Integer pageSize = context.getLimit();
-		List<ReportRequest> reportRequests =
-				reportService.getReportRequests(reportDefinition, null, null, (pageNumber - 1) * pageSize, pageSize,
-						statuses.toArray(new ReportRequest.Status[0]));
+		List<ReportRequest> reportRequests = getSortedReportRequests(reportDefinition, statuses, context.getParameter("sortBy"),
+				Math.max(0, (pageNumber - 1) * pageSize), pageSize);
 		long reportRequestsTotalCount =
 				reportService.getReportRequestsCount(reportDefinition, null, null, statuses.toArray(new ReportRequest.Status[0]));
 
-		String sortByParameter = context.getParameter("sortBy");
-		if (StringUtils.isBlank(sortByParameter) || "priority".equals(sortByParameter)) {
-			Collections.sort(reportRequests, new ReportRequest.PriorityComparator());
-			Collections.reverse(reportRequests);
-		} else if("name".equals(sortByParameter)) {
-			Collections.sort(reportRequests, new Comparator<ReportRequest>() {
-				@Override
-				public int compare(ReportRequest left, ReportRequest right) {
-					return left
-							.getReportDefinition()
-							.getParameterizable()
-							.getName()
-							.compareTo(right.getReportDefinition().getParameterizable().getName());
-				}
-			});
-		}
-
+		RenderingModeCache renderingModeCache = getRenderingModeCache();
 		for (ReportRequest reportRequest : reportRequests) {
 			for (RenderingMode mode :
-					reportService.getRenderingModes(
+					renderingModeCache.getRenderingModes(
 							reportRequest.getReportDefinition().getParameterizable())) {
 				if (OpenmrsUtil.nullSafeEquals(mode, reportRequest.getRenderingMode())) {
 					reportRequest.setRenderingMode(mode);
@@ -120,6 +109,80 @@ public class ReportRequestResource extends DelegatingCrudResource<ReportRequest>
 		return new AlreadyPaged<ReportRequest>(context, reportRequests, reportRequestsTotalCount > (long) pageNumber * pageSize, reportRequestsTotalCount);
 	}
 
+	/**
+	 * Sorts in the database, so that the order holds across pages. Only the ids of the requested page are selected in
+	 * SQL (since sorting by name needs the report definition's name), and then that page of requests is loaded.
+	 *
+	 * @param reportDefinition null for all
+	 * @param statuses empty for all
+	 * @param sortBy priority (the default; highest first), name, requestDate (latest first), or status; anything else
+	 * sorts by requestDate
+	 * @param firstResult
+	 * @param maxResults
+	 * @return one page of report requests, in order
+	 */
+	private List<ReportRequest> getSortedReportRequests(ReportDefinition reportDefinition, List<ReportRequest.Status> statuses,
+	                                                    String sortBy, int firstResult, int maxResults) {
+		String orderBy;
+		if (StringUtils.isBlank(sortBy) || "priority".equals(sortBy)) {
+			orderBy = "case r.priority when 'HIGHEST' then 0 when 'HIGH' then 1 when 'NORMAL' then 2 when 'LOW' then 3 else 4 end, ";
+		} else if ("name".equals(sortBy)) {
+			orderBy = "so.name, ";
+		} else if ("status".equals(sortBy)) {
+			orderBy = "r.status, ";
+		} else {
+			// requestDate, or a value we don't know, which is ignored as it always was
+			orderBy = "";
+		}
+		orderBy += "r.request_datetime desc, r.id desc";
+
+		StringBuilder sql = new StringBuilder("select r.id from reporting_report_request r");
+		if ("name".equals(sortBy)) {
+			sql.append(" left join serialized_object so on so.uuid = r.report_definition_uuid");
+		}
+		sql.append(" where 1 = 1");
+		if (reportDefinition != null) {
+			sql.append(" and r.report_definition_uuid = :reportDefinition");
+		}
+		if (!statuses.isEmpty()) {
+			sql.append(" and r.status in (:statuses)");
+		}
+		sql.append(" order by ").append(orderBy);
+
+		DbSession session = Context.getRegisteredComponents(DbSessionFactory.class).get(0).getCurrentSession();
+		SQLQuery query = session.createSQLQuery(sql.toString());
+		if (reportDefinition != null) {
+			query.setParameter("reportDefinition", reportDefinition.getUuid());
+		}
+		if (!statuses.isEmpty()) {
+			List<String> statusNames = new ArrayList<String>();
+			for (ReportRequest.Status status : statuses) {
+				statusNames.add(status.name());
+			}
+			query.setParameterList("statuses", statusNames);
+		}
+		query.setFirstResult(firstResult);
+		query.setMaxResults(maxResults);
+
+		final List<Integer> ids = new ArrayList<Integer>();
+		for (Object id : query.list()) {
+			ids.add(((Number) id).intValue());
+		}
+		if (ids.isEmpty()) {
+			return new ArrayList<ReportRequest>();
+		}
+		List<ReportRequest> reportRequests = session.createCriteria(ReportRequest.class)
+				.add(Restrictions.in("id", ids))
+				.list();
+		Collections.sort(reportRequests, new Comparator<ReportRequest>() {
+			@Override
+			public int compare(ReportRequest left, ReportRequest right) {
+				return ids.indexOf(left.getId()) - ids.indexOf(right.getId());
+			}
+		});
+		return reportRequests;
+	}
+
 	private List<ReportRequest.Status> findAppropriateStatuses(RequestContext context) {
 		List<ReportRequest.Status> reportRequestStatusList = new ArrayList<ReportRequest.Status>();
 		String commaSeparatedStatusesParam = context.getParameter("status");
@@ -156,7 +219,7 @@ public class ReportRequestResource extends DelegatingCrudResource<ReportRequest>
 
 		ReportService reportService = getReportService();
 		Map<String, Object> parameterValues = buildParametersMap(reportDefinition, reportRequestParam);
-		RenderingMode renderingMode = findRenderingMode(reportDefinition, reportRequestParam, reportService);
+		RenderingMode renderingMode = findRenderingMode(reportDefinition, reportRequestParam);
 
 		ReportRequest reportRequest = reportService.getReportRequestByUuid(reportRequestParam.getUuid());
 		if (reportRequest == null) {
@@ -166,11 +229,12 @@ public class ReportRequestResource extends DelegatingCrudResource<ReportRequest>
 		reportRequest.setReportDefinition(new Mapped<ReportDefinition>(reportDefinition, parameterValues));
 		reportRequest.setBaseCohort(reportRequestParam.getBaseCohort());
 		reportRequest.setRenderingMode(renderingMode);
-		reportRequest.setPriority(ReportRequest.Priority.NORMAL);
+		reportRequest.setPriority(reportRequestParam.getPriority() != null ? reportRequestParam.getPriority()
+				: ReportRequest.Priority.NORMAL);
 		reportRequest.setSchedule(reportRequestParam.getSchedule());
 
 		reportService.queueReport(reportRequest);
-		reportService.processNextQueuedReports();
+		Context.getRegisteredComponents(ReportQueueDispatcher.class).get(0).wake();
 
 		return reportRequest;
 	}
@@ -189,9 +253,8 @@ public class ReportRequestResource extends DelegatingCrudResource<ReportRequest>
 		return parameterValues;
 	}
 
-	private RenderingMode findRenderingMode(ReportDefinition reportDefinition, ReportRequest reportRequest,
-																					ReportService reportService) {
-		List<RenderingMode> renderingModes = reportService.getRenderingModes(reportDefinition);
+	private RenderingMode findRenderingMode(ReportDefinition reportDefinition, ReportRequest reportRequest) {
+		List<RenderingMode> renderingModes = getRenderingModeCache().getRenderingModes(reportDefinition);
 		RenderingMode renderingMode = null;
 		for (RenderingMode mode : renderingModes) {
 			if (StringUtils.equals(mode.getArgument(), reportRequest.getRenderingMode().getArgument())) {
@@ -354,6 +417,10 @@ public class ReportRequestResource extends DelegatingCrudResource<ReportRequest>
 		}
 	}
 
+	private RenderingModeCache getRenderingModeCache() {
+		return Context.getRegisteredComponents(RenderingModeCache.class).get(0);
+	}
+
 	/**
 	 * @return the ReportService
 	 */
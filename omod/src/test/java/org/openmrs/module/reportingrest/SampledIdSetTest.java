@@ -0,0 +1,48 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+
+public class SampledIdSetTest {
+
+    @Test
+    public void testCombinesTheSampledMembers() {
+        SampledIdSet sample = new SampledIdSet(new LinkedHashSet<Integer>(Arrays.asList(2, 6, 7)), 300, true);
+
+        SampledIdSet retained = (SampledIdSet) sample.clone();
+        retained.retainAll(new SimpleIdSet(new LinkedHashSet<Integer>(Arrays.asList(6, 7, 8))));
+        assertThat(retained.getMemberIds(), contains(6, 7));
+        assertThat(retained.getSize(), is(2));
+        assertThat(retained.isEstimated(), is(false));
+
+        SampledIdSet removed = (SampledIdSet) sample.clone();
+        removed.removeAll(new SimpleIdSet(new LinkedHashSet<Integer>(Arrays.asList(6))));
+        assertThat(removed.getMemberIds(), contains(2, 7));
+        assertThat(removed.getSize(), is(2));
+
+        SampledIdSet added = (SampledIdSet) sample.clone();
+        added.addAll(new SimpleIdSet(new LinkedHashSet<Integer>(Arrays.asList(9))));
+        assertThat(added.getMemberIds(), contains(2, 6, 7, 9));
+        assertThat(added.getSize(), is(4));
+
+        // the original is left alone
+        assertThat(sample.getSize(), is(300));
+        assertThat(sample.isEstimated(), is(true));
+    }
+
+}
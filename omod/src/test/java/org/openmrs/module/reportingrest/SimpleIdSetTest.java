@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThrows;
+
+public class SimpleIdSetTest {
+
+    @Test
+    public void testMembersAreInAscendingOrder() {
+        SimpleIdSet set = new SimpleIdSet(ids(5, 1, 3));
+        assertThat(set.getMemberIds(), contains(1, 3, 5));
+        assertThat(set.getSize(), is(3));
+        assertThat(set.contains(3), is(true));
+        assertThat(set.contains(2), is(false));
+        assertThat(set.contains(-1), is(false));
+        assertThat(set.contains(null), is(false));
+    }
+
+    @Test
+    public void testSetOperations() {
+        SimpleIdSet set = new SimpleIdSet(ids(1, 3, 5));
+        SimpleIdSet other = new SimpleIdSet(ids(3, 4));
+
+        SimpleIdSet result = (SimpleIdSet) set.clone();
+        result.retainAll(other);
+        assertThat(result.getMemberIds(), contains(3));
+
+        result = (SimpleIdSet) set.clone();
+        result.addAll(other);
+        assertThat(result.getMemberIds(), contains(1, 3, 4, 5));
+
+        result.removeAll(other);
+        assertThat(result.getMemberIds(), contains(1, 5));
+
+        assertThat(set.getMemberIds(), contains(1, 3, 5));
+        assertThat(other.getMemberIds(), contains(3, 4));
+    }
+
+    @Test
+    public void testMemberIdsWriteThrough() {
+        SimpleIdSet set = new SimpleIdSet();
+        assertThat(set.isEmpty(), is(true));
+
+        Set<Integer> memberIds = set.getMemberIds();
+        memberIds.add(7);
+        memberIds.add(2);
+        assertThat(set.getMemberIds(), contains(2, 7));
+
+        Iterator<Integer> iterator = memberIds.iterator();
+        iterator.next();
+        iterator.remove();
+        assertThat(set.getMemberIds(), contains(7));
+
+        memberIds.clear();
+        assertThat(set.getMemberIds(), is(empty()));
+    }
+
+    @Test
+    public void testRejectsNegativeIds() {
+        assertThrows(IllegalArgumentException.class, () -> new SimpleIdSet(ids(1, -2)));
+    }
+
+    @Test
+    public void testMemoryDependsOnTheHighestId() {
+        SimpleIdSet low = new SimpleIdSet(ids(1, 2, 3));
+        SimpleIdSet high = new SimpleIdSet(ids(2000000));
+        assertThat(low.getMemoryBytes() < 100, is(true));
+        assertThat(high.getMemoryBytes() >= 2000000 / 8, is(true));
+    }
+
+    @Test
+    public void testJsonRoundTrip() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode json = mapper.readTree(mapper.writeValueAsString(new SimpleIdSet(ids(10, 2))));
+        assertThat(json.get("memberIds").toString(), is("[2,10]"));
+        assertThat(json.has("memoryBytes"), is(false));
+
+        SimpleIdSet set = mapper.readValue("{\"memberIds\":[2,10]}", SimpleIdSet.class);
+        assertThat(set.getMemberIds(), contains(2, 10));
+    }
+
+    private static Set<Integer> ids(Integer... ids) {
+        return new HashSet<Integer>(Arrays.asList(ids));
+    }
+
+}
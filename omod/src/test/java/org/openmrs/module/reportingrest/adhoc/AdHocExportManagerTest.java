@@ -15,8 +15,15 @@
 package org.openmrs.module.reportingrest.adhoc;
 
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
+import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.report.ReportRequest;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
 import org.openmrs.module.reporting.report.service.ReportService;
 import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
@@ -24,9 +31,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
 
 public class AdHocExportManagerTest extends BaseModuleWebContextSensitiveTest {
 
@@ -41,6 +50,74 @@ public class AdHocExportManagerTest extends BaseModuleWebContextSensitiveTest {
     @Autowired
     ReportDefinitionService reportDefinitionService;
 
+    @Autowired
+    DataSetDefinitionService dataSetDefinitionService;
+
+    @Autowired
+    DbSessionFactory sessionFactory;
+
+    @Test
+    public void testGetAdHocDataSetsFollowsChangesMadeElsewhere() throws Exception {
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setUuid(DSD_UUID);
+        dsd.setName("Testing");
+        adHocExportManager.saveAdHocDataSet(dsd);
+
+        PatientDataSetDefinition savedDirectly = new PatientDataSetDefinition();
+        savedDirectly.setName(AdHocExportManager.NAME_PREFIX + "Saved directly");
+        dataSetDefinitionService.saveDefinition(savedDirectly);
+
+        List<AdHocExportManager.AdHocDataSet> list = adHocExportManager.getAdHocDataSets(Context.getAuthenticatedUser());
+        assertThat(list.size(), is(2));
+        assertThat(list.get(0).getName(), is("Saved directly"));
+        assertThat(list.get(1).getName(), is("Testing"));
+
+        dataSetDefinitionService.purgeDefinition(savedDirectly);
+        list = adHocExportManager.getAdHocDataSets(Context.getAuthenticatedUser());
+        assertThat(list.size(), is(1));
+        assertThat(list.get(0).getUuid(), is(DSD_UUID));
+
+        adHocExportManager.purgeAdHocDataSet(dsd);
+        assertThat(adHocExportManager.getAdHocDataSets(Context.getAuthenticatedUser()).size(), is(0));
+    }
+
+    @Test
+    public void testGetAdHocDataSetsFollowsChangesElsewhereThatKeepTheName() throws Exception {
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setUuid(DSD_UUID);
+        dsd.setName("Testing");
+        dsd.setDescription("Before");
+        adHocExportManager.saveAdHocDataSet(dsd);
+        assertThat(adHocExportManager.getAdHocDataSets(Context.getAuthenticatedUser()).get(0).getDescription(), is("Before"));
+
+        // date_changed is what tells versions apart
+        Thread.sleep(10);
+        DataSetDefinition changed = dataSetDefinitionService.getDefinitionByUuid(DSD_UUID);
+        changed.setDescription("After");
+        dataSetDefinitionService.saveDefinition(changed);
+
+        assertThat(adHocExportManager.getAdHocDataSets(Context.getAuthenticatedUser()).get(0).getDescription(), is("After"));
+    }
+
+    @Test
+    public void testBuildExportRequestReusesReportDefinitionUntilDataSetChanges() throws Exception {
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setUuid(DSD_UUID);
+        dsd.setName("Testing");
+        adHocExportManager.saveAdHocDataSet(dsd);
+
+        ReportRequest first = adHocExportManager.buildExportRequest(Arrays.asList(DSD_UUID), new HashMap<String, Object>(), null);
+        ReportRequest second = adHocExportManager.buildExportRequest(Arrays.asList(DSD_UUID), new HashMap<String, Object>(), null);
+        assertThat(second.getReportDefinition().getParameterizable().getUuid(), is(first.getReportDefinition().getParameterizable().getUuid()));
+        assertThat(reportDefinitionService.getAllDefinitions(true).size(), is(1));
+
+        dsd.setDescription("Changed");
+        adHocExportManager.saveAdHocDataSet(dsd);
+        ReportRequest third = adHocExportManager.buildExportRequest(Arrays.asList(DSD_UUID), new HashMap<String, Object>(), null);
+        assertThat(third.getReportDefinition().getParameterizable().getUuid(), not(first.getReportDefinition().getParameterizable().getUuid()));
+        assertThat(reportDefinitionService.getAllDefinitions(true).size(), is(2));
+    }
+
     @Test
     public void testDeleteTransientReportDefinitions() throws Exception {
         PatientDataSetDefinition dsd = new PatientDataSetDefinition();
@@ -73,4 +150,26 @@ public class AdHocExportManagerTest extends BaseModuleWebContextSensitiveTest {
         assertThat(reportDefinitionService.getAllDefinitions(true).size(), is(0));
     }
 
+    @Test
+    public void testDeleteTransientReportDefinitionsStopsAfterTimeBudget() throws Exception {
+        Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(AdHocExportManager.GP_CLEANUP_BATCH_SIZE, "1"));
+        Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(AdHocExportManager.GP_CLEANUP_TIME_BUDGET_SECONDS, "0"));
+        for (String name : Arrays.asList("One", "Two")) {
+            ReportDefinition rd = new ReportDefinition();
+            rd.setName(AdHocExportManager.NAME_PREFIX + name);
+            reportDefinitionService.saveDefinition(rd);
+        }
+
+        Location location = Context.getLocationService().getLocation(1);
+
+        // one batch is always deleted, even if there is no time
+        assertThat(adHocExportManager.deleteTransientReportDefinitionsAndCount(), is(1));
+        assertThat(reportDefinitionService.getAllDefinitions(true).size(), is(1));
+
+        assertThat(adHocExportManager.deleteTransientReportDefinitionsAndCount(), is(1));
+        assertThat(reportDefinitionService.getAllDefinitions(true).size(), is(0));
+        // what the caller loaded is still attached
+        assertThat(sessionFactory.getCurrentSession().contains(location), is(true));
+    }
+
 }
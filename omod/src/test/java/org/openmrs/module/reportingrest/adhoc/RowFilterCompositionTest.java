@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.adhoc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThrows;
+
+public class RowFilterCompositionTest {
+
+    private final List<Set<Integer>> rowFilters = Arrays.asList(ids(1, 2, 3), ids(2, 3, 4), ids(3, 5));
+
+    private final Set<Integer> allRows = ids(1, 2, 3, 4, 5, 6);
+
+    @Test
+    public void testAndOr() {
+        assertThat(evaluate("1 AND 2"), containsInAnyOrder(2, 3));
+        assertThat(evaluate("1 or 3"), containsInAnyOrder(1, 2, 3, 5));
+    }
+
+    @Test
+    public void testOperatorsAreAppliedLeftToRight() {
+        assertThat(evaluate("1 OR 2 AND 3"), containsInAnyOrder(3));
+        assertThat(evaluate("3 AND 2 OR 1"), containsInAnyOrder(1, 2, 3));
+    }
+
+    @Test
+    public void testNotAndParentheses() {
+        assertThat(evaluate("NOT 1"), containsInAnyOrder(4, 5, 6));
+        assertThat(evaluate("1 AND NOT (2 OR 3)"), containsInAnyOrder(1));
+        assertThat(evaluate("(1 OR 2) AND NOT 3"), containsInAnyOrder(1, 2, 4));
+        assertThat(evaluate("NOT (1 OR 2 OR 3)"), containsInAnyOrder(6));
+        assertThat(evaluate("1 AND NOT 1"), is(empty()));
+    }
+
+    @Test
+    public void testUsesNot() {
+        assertThat(RowFilterComposition.parse("1 AND 2", 3).usesNot(), is(false));
+        assertThat(RowFilterComposition.parse("1 AND not 2", 3).usesNot(), is(true));
+    }
+
+    @Test
+    public void testDoesNotChangeRowFilterResults() {
+        evaluate("1 AND 2 OR 3");
+        assertThat(rowFilters.get(0), containsInAnyOrder(1, 2, 3));
+    }
+
+    @Test
+    public void testRejectsWhatItCannotEvaluate() {
+        for (String composition : Arrays.asList("", "1 2", "1 AND", "4", "0", "(1 AND 2", "1)", "a", "1 AND OR 2")) {
+            assertThrows(composition, IllegalArgumentException.class, () -> RowFilterComposition.parse(composition, 3));
+        }
+    }
+
+    private Set<Integer> evaluate(String composition) {
+        return RowFilterComposition.parse(composition, rowFilters.size()).evaluate(rowFilters, allRows);
+    }
+
+    private static Set<Integer> ids(Integer... ids) {
+        return new HashSet<Integer>(Arrays.asList(ids));
+    }
+
+}
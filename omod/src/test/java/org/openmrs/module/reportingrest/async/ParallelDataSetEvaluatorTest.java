@@ -0,0 +1,103 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.definition.SqlDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.report.ReportData;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThrows;
+
+public class ParallelDataSetEvaluatorTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private ParallelDataSetEvaluator evaluator;
+
+    @Test
+    public void testKeepsTheDataSetsInTheOrderOfTheDefinition() throws Exception {
+        setParallelism("4");
+        ReportDefinition definition = new ReportDefinition();
+        definition.setName("Report");
+        addSqlDataSet(definition, "third", "select 3 as n");
+        addSqlDataSet(definition, "first", "select 1 as n");
+        addSqlDataSet(definition, "second", "select 2 as n");
+
+        ReportData reportData = evaluator.evaluate(definition, new EvaluationContext());
+
+        assertThat(new ArrayList<String>(reportData.getDataSets().keySet()), is(Arrays.asList("third", "first", "second")));
+        assertThat(firstValue(reportData.getDataSets().get("third")), is(3));
+        assertThat(firstValue(reportData.getDataSets().get("first")), is(1));
+        assertThat(firstValue(reportData.getDataSets().get("second")), is(2));
+        assertThat(reportData.getDefinition(), is(definition));
+    }
+
+    @Test
+    public void testFailsIfOneDataSetFails() throws Exception {
+        setParallelism("4");
+        final ReportDefinition definition = new ReportDefinition();
+        definition.setName("Report");
+        addSqlDataSet(definition, "fine", "select 1 as n");
+        addSqlDataSet(definition, "broken", "select n from no_such_table");
+
+        assertThrows(EvaluationException.class, () -> evaluator.evaluate(definition, new EvaluationContext()));
+    }
+
+    @Test
+    public void testIsOnlyEnabledForSeveralDataSetsAndParallelismAboveOne() throws Exception {
+        ReportDefinition oneDataSet = new ReportDefinition();
+        addSqlDataSet(oneDataSet, "only", "select 1 as n");
+        ReportDefinition twoDataSets = new ReportDefinition();
+        addSqlDataSet(twoDataSets, "first", "select 1 as n");
+        addSqlDataSet(twoDataSets, "second", "select 2 as n");
+
+        // by default, the reporting module evaluates the data sets one after another
+        assertThat(evaluator.isEnabledFor(twoDataSets), is(false));
+
+        setParallelism("1");
+        assertThat(evaluator.isEnabledFor(twoDataSets), is(false));
+
+        setParallelism("not a number");
+        assertThat(evaluator.isEnabledFor(twoDataSets), is(false));
+
+        setParallelism("2");
+        assertThat(evaluator.isEnabledFor(twoDataSets), is(true));
+        assertThat(evaluator.isEnabledFor(oneDataSet), is(false));
+    }
+
+    private void setParallelism(String value) {
+        Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ParallelDataSetEvaluator.GP_PARALLELISM, value));
+    }
+
+    private void addSqlDataSet(ReportDefinition definition, String key, String sql) {
+        SqlDataSetDefinition dataSetDefinition = new SqlDataSetDefinition();
+        dataSetDefinition.setName(key);
+        dataSetDefinition.setSqlQuery(sql);
+        definition.addDataSetDefinition(key, dataSetDefinition, new HashMap<String, Object>());
+    }
+
+    private int firstValue(DataSet dataSet) {
+        return ((Number) dataSet.iterator().next().getColumnValues().values().iterator().next()).intValue();
+    }
+
+}
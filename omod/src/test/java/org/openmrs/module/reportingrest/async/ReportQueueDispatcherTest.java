@@ -0,0 +1,141 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.async;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.junit.After;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.startsWith;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with the default of one worker. Reports queued in a test are not committed, so a worker could not see them;
+ * instead these tests watch the calls the workers make to ReportService.processNextQueuedReports.
+ */
+public class ReportQueueDispatcherTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private ReportQueueDispatcher dispatcher;
+
+    private MethodInterceptor advice;
+
+    @After
+    public void removeAdvice() {
+        if (advice != null) {
+            Context.removeAdvice(ReportService.class, advice);
+        }
+    }
+
+    @Test
+    public void testProcessesTheQueueOnAWorkerAsTheUserWhoQueued() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(1);
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        final AtomicReference<Integer> userId = new AtomicReference<Integer>();
+        watchProcessing(() -> {
+            threadName.set(Thread.currentThread().getName());
+            userId.set(Context.getAuthenticatedUser().getUserId());
+            processed.countDown();
+        });
+
+        wakeOutsideTransaction();
+
+        assertTrue(processed.await(10, TimeUnit.SECONDS));
+        assertThat(threadName.get(), startsWith("reportingrest-reportqueue-"));
+        assertThat(userId.get(), is(Context.getAuthenticatedUser().getUserId()));
+    }
+
+    @Test
+    public void testDropsWakeUpsWhileOneIsAlreadyWaiting() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch processedTwice = new CountDownLatch(2);
+        final AtomicInteger calls = new AtomicInteger();
+        watchProcessing(() -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            processedTwice.countDown();
+        });
+
+        wakeOutsideTransaction();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the worker is busy, so the first of these waits for it, and the others would only repeat that one
+        wakeOutsideTransaction();
+        wakeOutsideTransaction();
+        wakeOutsideTransaction();
+        release.countDown();
+
+        assertTrue(processedTwice.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testWaitsForTheTransactionToCommit() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(1);
+        watchProcessing(processed::countDown);
+
+        // tests run in a transaction that is rolled back, so this never gets to a worker
+        dispatcher.wake();
+
+        assertThat(processed.await(500, TimeUnit.MILLISECONDS), is(false));
+    }
+
+    /**
+     * Replaces ReportService.processNextQueuedReports with onProcess
+     */
+    private void watchProcessing(final Runnable onProcess) {
+        advice = invocation -> {
+            if (!"processNextQueuedReports".equals(invocation.getMethod().getName())) {
+                return invocation.proceed();
+            }
+            onProcess.run();
+            return null;
+        };
+        Context.addAdvice(ReportService.class, advice);
+    }
+
+    /**
+     * Calls wake on a thread without a transaction, as the current user
+     */
+    private void wakeOutsideTransaction() throws InterruptedException {
+        final UserContext userContext = Context.getUserContext();
+        Thread thread = new Thread(() -> {
+            Context.setUserContext(userContext);
+            try {
+                dispatcher.wake();
+            }
+            finally {
+                Context.clearUserContext();
+            }
+        });
+        thread.start();
+        thread.join();
+    }
+
+}
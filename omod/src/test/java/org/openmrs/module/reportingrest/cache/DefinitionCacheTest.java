@@ -0,0 +1,110 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DefinitionCacheTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private ReportDefinitionService reportDefinitionService;
+
+    @Autowired
+    private DefinitionCache definitionCache;
+
+    @Autowired
+    private DbSessionFactory sessionFactory;
+
+    @Before
+    public void setUp() {
+        definitionCache.clear();
+    }
+
+    @Test
+    public void testGivesEachCallerItsOwnCopy() {
+        ReportDefinition saved = saveReportDefinition("Cached");
+
+        ReportDefinition first = getDefinition(saved.getUuid());
+        first.addParameter(new Parameter("changed", "Changed", String.class));
+        ReportDefinition second = getDefinition(saved.getUuid());
+
+        assertNotSame(first, second);
+        assertThat(second.getName(), is("Cached"));
+        assertThat(second.getParameters().size(), is(0));
+    }
+
+    @Test
+    public void testReloadsDefinitionsThatWereSavedSince() throws Exception {
+        ReportDefinition saved = saveReportDefinition("Before");
+        getDefinition(saved.getUuid());
+
+        // date_changed is what tells versions apart
+        Thread.sleep(10);
+        ReportDefinition changed = reportDefinitionService.getDefinitionByUuid(saved.getUuid());
+        changed.setName("After");
+        reportDefinitionService.saveDefinition(changed);
+
+        assertThat(getDefinition(saved.getUuid()).getName(), is("After"));
+    }
+
+    @Test
+    public void testLoadsPersistentObjectsInTheCallersSession() {
+        ReportDefinition reportDefinition = new ReportDefinition();
+        reportDefinition.setName("With location");
+        Parameter parameter = new Parameter("location", "Location", Location.class);
+        parameter.setDefaultValue(Context.getLocationService().getLocation(1));
+        reportDefinition.addParameter(parameter);
+        String uuid = reportDefinitionService.saveDefinition(reportDefinition).getUuid();
+
+        Location first = (Location) getDefinition(uuid).getParameter("location").getDefaultValue();
+        // as if the cached definition were used by a later request
+        Context.clearSession();
+        Location second = (Location) getDefinition(uuid).getParameter("location").getDefaultValue();
+
+        assertNotSame(first, second);
+        assertThat(second.getId(), is(1));
+        assertTrue(sessionFactory.getCurrentSession().contains(second));
+    }
+
+    @Test
+    public void testCanBeDisabled() {
+        Context.getAdministrationService().setGlobalProperty(DefinitionCache.GP_TTL_SECONDS, "0");
+        ReportDefinition saved = saveReportDefinition("Not cached");
+
+        assertThat(getDefinition(saved.getUuid()).getName(), is("Not cached"));
+        assertNull(getDefinition("not-a-definition"));
+    }
+
+    private ReportDefinition saveReportDefinition(String name) {
+        ReportDefinition reportDefinition = new ReportDefinition();
+        reportDefinition.setName(name);
+        return reportDefinitionService.saveDefinition(reportDefinition);
+    }
+
+    private ReportDefinition getDefinition(String uuid) {
+        return definitionCache.getDefinition(ReportDefinition.class, reportDefinitionService, uuid);
+    }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Location;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThrows;
+
+public class EvaluationCacheKeyTest {
+
+    @Test
+    public void testEqualEvaluationsGetEqualKeys() {
+        ReportDefinition definition = newDefinition();
+        EvaluationContext context = new EvaluationContext();
+        context.addParameterValue("startDate", new Date(1000));
+        context.addParameterValue("locations", new HashSet<Object>(Arrays.asList("a", "b", "c")));
+        EvaluationContext same = new EvaluationContext();
+        same.addParameterValue("locations", new HashSet<Object>(Arrays.asList("c", "b", "a")));
+        same.addParameterValue("startDate", new Date(1000));
+
+        String key = EvaluationCacheKey.build(definition, context);
+        assertThat(key, startsWith(definition.getUuid() + ":"));
+        assertThat(EvaluationCacheKey.build(definition, same), is(key));
+    }
+
+    @Test
+    public void testKeysBaseCohortsByTheirMembers() {
+        ReportDefinition definition = newDefinition();
+        EvaluationContext context = new EvaluationContext();
+        context.setBaseCohort(new Cohort(Arrays.asList(7, 2, 5)));
+        EvaluationContext sameMembers = new EvaluationContext();
+        sameMembers.setBaseCohort(new Cohort(Arrays.asList(2, 5, 7)));
+        EvaluationContext otherMembers = new EvaluationContext();
+        otherMembers.setBaseCohort(new Cohort(Arrays.asList(2, 5)));
+
+        String key = EvaluationCacheKey.build(definition, context);
+        assertThat(EvaluationCacheKey.build(definition, sameMembers), is(key));
+        assertThat(EvaluationCacheKey.build(definition, otherMembers), not(key));
+        assertThat(EvaluationCacheKey.build(definition, new EvaluationContext()), not(key));
+    }
+
+    @Test
+    public void testKeysPersistentObjectsByTheirUuid() {
+        Location location = new Location(1);
+        Location other = new Location(2);
+        EvaluationContext context = new EvaluationContext();
+        context.addParameterValue("location", location);
+        EvaluationContext otherLocation = new EvaluationContext();
+        otherLocation.addParameterValue("location", other);
+
+        ReportDefinition definition = newDefinition();
+        assertThat(EvaluationCacheKey.build(definition, otherLocation), not(EvaluationCacheKey.build(definition, context)));
+    }
+
+    @Test
+    public void testChangesWithTheParametersAndTheDefinitionVersion() {
+        ReportDefinition definition = newDefinition();
+        EvaluationContext context = new EvaluationContext();
+        context.addParameterValue("startDate", new Date(1000));
+        EvaluationContext otherDate = new EvaluationContext();
+        otherDate.addParameterValue("startDate", new Date(2000));
+
+        String key = EvaluationCacheKey.build(definition, context);
+        assertThat(EvaluationCacheKey.build(definition, otherDate), not(key));
+        definition.setDateChanged(new Date(5000));
+        assertThat(EvaluationCacheKey.build(definition, context), not(key));
+    }
+
+    @Test
+    public void testNeedsADefinitionWithAUuid() {
+        final ReportDefinition definition = new ReportDefinition();
+        definition.setUuid(null);
+        assertThrows(IllegalArgumentException.class, () -> EvaluationCacheKey.build(definition, new EvaluationContext()));
+    }
+
+    private ReportDefinition newDefinition() {
+        ReportDefinition definition = new ReportDefinition();
+        definition.setDateCreated(new Date(0));
+        return definition;
+    }
+
+}
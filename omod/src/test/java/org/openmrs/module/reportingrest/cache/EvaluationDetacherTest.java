@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.reporting.dataset.DataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EvaluationDetacherTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private EvaluationDetacher evaluationDetacher;
+
+    @Autowired
+    private DbSessionFactory sessionFactory;
+
+    @Test
+    public void testReplacesPersistentObjectsWithReferencesAndLoadsThemAgain() {
+        Location location = Context.getLocationService().getLocation(1);
+        EvaluationContext context = new EvaluationContext();
+        context.addParameterValue("location", location);
+        SimpleDataSet dataSet = new SimpleDataSet(null, context);
+        DataSetRow row = new DataSetRow();
+        row.addColumnValue(new DataSetColumn("location", "Location", Location.class), location);
+        row.addColumnValue(new DataSetColumn("count", "Count", Integer.class), 3);
+        dataSet.addRow(row);
+
+        DataSet detached = (DataSet) evaluationDetacher.detach(dataSet);
+        DataSetRow detachedRow = detached.iterator().next();
+        assertThat(detachedRow.getColumnValue("location"), instanceOf(EntityReference.class));
+        assertThat(detachedRow.getColumnValue("count"), is((Object) 3));
+        assertThat(detached.getContext().getParameterValue("location"), instanceOf(EntityReference.class));
+        // the evaluation itself is left alone
+        assertSame(location, row.getColumnValue("location"));
+        assertSame(location, context.getParameterValue("location"));
+
+        // as if the cached evaluation were used by a later request
+        Context.clearSession();
+        DataSet attached = (DataSet) evaluationDetacher.attach(detached);
+        Location loaded = (Location) attached.iterator().next().getColumnValue("location");
+        assertNotSame(location, loaded);
+        assertThat(loaded.getId(), is(1));
+        assertTrue(sessionFactory.getCurrentSession().contains(loaded));
+        assertSame(loaded, attached.getContext().getParameterValue("location"));
+    }
+
+    @Test
+    public void testCopiesEvaluationContextsForAnotherSession() {
+        Location location = Context.getLocationService().getLocation(1);
+        EvaluationContext context = new EvaluationContext();
+        context.addParameterValue("location", location);
+
+        EvaluationContext detached = evaluationDetacher.detachCopy(context);
+        assertThat(detached.getParameterValue("location"), instanceOf(EntityReference.class));
+        assertSame(location, context.getParameterValue("location"));
+
+        // as if an asynchronous evaluation ran after the request's session was closed
+        Context.clearSession();
+        EvaluationContext attached = evaluationDetacher.attachCopy(detached);
+        Location loaded = (Location) attached.getParameterValue("location");
+        assertNotSame(location, loaded);
+        assertThat(loaded.getId(), is(1));
+        assertTrue(sessionFactory.getCurrentSession().contains(loaded));
+    }
+
+    @Test
+    public void testLeavesEvaluationsWithoutPersistentObjectsAsTheyAre() {
+        SimpleDataSet dataSet = new SimpleDataSet(null, new EvaluationContext());
+        DataSetRow row = new DataSetRow();
+        row.addColumnValue(new DataSetColumn("count", "Count", Integer.class), 3);
+        dataSet.addRow(row);
+
+        assertSame(dataSet, evaluationDetacher.detach(dataSet));
+        assertSame(dataSet, evaluationDetacher.attach(dataSet));
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class ExpiringLruCacheTest {
+
+    private long now = 1000;
+
+    private ExpiringLruCache<String, String> newCache(int maxEntries, long ttlMillis) {
+        return new ExpiringLruCache<String, String>(maxEntries, ttlMillis) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void shouldExpireEntriesAfterTtl() throws Exception {
+        ExpiringLruCache<String, String> cache = newCache(10, 100);
+        cache.put("a", "A");
+        now += 99;
+        assertThat(cache.get("a"), is("A"));
+        now += 1;
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntry() throws Exception {
+        ExpiringLruCache<String, String> cache = newCache(2, 100);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.put("c", "C");
+
+        assertThat(cache.get("a"), is("A"));
+        assertThat(cache.get("b"), nullValue());
+        assertThat(cache.get("c"), is("C"));
+        assertThat(cache.getEvictions(), is(1L));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntriesToStayUnderMaxWeight() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<String, String>(10, 100, 5, new ExpiringLruCache.Weigher<String>() {
+
+            @Override
+            public long weigh(String value) {
+                return value.length();
+            }
+        });
+        cache.put("a", "AA");
+        cache.put("b", "BB");
+        cache.get("a");
+        cache.put("c", "CC");
+
+        assertThat(cache.get("a"), is("AA"));
+        assertThat(cache.get("b"), nullValue());
+        assertThat(cache.get("c"), is("CC"));
+        assertThat(cache.getTotalWeight(), is(4L));
+        assertThat(cache.getEvictions(), is(1L));
+
+        // too heavy to cache at all, and nothing else is evicted for it
+        cache.put("d", "DDDDDD");
+        assertThat(cache.get("d"), nullValue());
+        assertThat(cache.size(), is(2));
+    }
+
+}
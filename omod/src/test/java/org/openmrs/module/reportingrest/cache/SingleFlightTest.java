@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThrows;
+
+public class SingleFlightTest {
+
+    @Test
+    public void shouldShareResultOfConcurrentCallsWithSameKey() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<String, Integer>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Integer> work = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return 42;
+            }
+        };
+
+        final Integer[] results = new Integer[2];
+        Thread first = new Thread(new Caller(singleFlight, work, results, 0));
+        Thread second = new Thread(new Caller(singleFlight, work, results, 1));
+        first.start();
+        started.await(10, TimeUnit.SECONDS);
+        second.start();
+        // wait until the second caller is blocked, waiting for the first one's result
+        long giveUpAt = System.currentTimeMillis() + 10000;
+        while (second.getState() != Thread.State.WAITING && second.getState() != Thread.State.TIMED_WAITING
+                && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        first.join(10000);
+        second.join(10000);
+
+        assertThat(results[0], is(42));
+        assertThat(results[1], is(42));
+        assertThat(calls.get(), is(1));
+        assertThat(singleFlight.getInFlightCount(), is(0));
+    }
+
+    @Test
+    public void shouldRethrowExceptionOfWork() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<String, Integer>();
+        assertThrows(IllegalArgumentException.class, () -> singleFlight.execute("key", () -> {
+            throw new IllegalArgumentException("bad");
+        }));
+        assertThat(singleFlight.getInFlightCount(), is(0));
+    }
+
+    private static class Caller implements Runnable {
+
+        private final SingleFlight<String, Integer> singleFlight;
+
+        private final Callable<Integer> work;
+
+        private final Integer[] results;
+
+        private final int index;
+
+        Caller(SingleFlight<String, Integer> singleFlight, Callable<Integer> work, Integer[] results, int index) {
+            this.singleFlight = singleFlight;
+            this.work = work;
+            this.results = results;
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                results[index] = singleFlight.execute("key", work);
+            }
+            catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.util;
+
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.module.reporting.cohort.definition.EncounterCohortDefinition;
+import org.openmrs.module.reporting.dataset.definition.SqlDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class DefinitionCopierTest {
+
+    @Test
+    public void testCopiesDefinitionsButSharesPersistentObjects() {
+        EncounterType encounterType = new EncounterType(1);
+        EncounterCohortDefinition cohortDefinition = new EncounterCohortDefinition();
+        cohortDefinition.setName("With encounters");
+        cohortDefinition.setEncounterTypeList(Collections.singletonList(encounterType));
+        cohortDefinition.setOnOrAfter(new Date(1000));
+        cohortDefinition.addParameter(new Parameter("onOrBefore", "On or before", Date.class));
+
+        EncounterCohortDefinition copy = DefinitionCopier.copy(cohortDefinition);
+
+        assertNotSame(cohortDefinition, copy);
+        assertThat(copy.getUuid(), is(cohortDefinition.getUuid()));
+        assertThat(copy.getName(), is("With encounters"));
+        assertSame(encounterType, copy.getEncounterTypeList().get(0));
+        assertThat(copy.getOnOrAfter(), is(new Date(1000)));
+        assertNotSame(cohortDefinition.getOnOrAfter(), copy.getOnOrAfter());
+        assertSame(Date.class, copy.getParameter("onOrBefore").getType());
+
+        copy.addParameter(new Parameter("onOrAfter", "On or after", Date.class));
+        copy.getOnOrAfter().setTime(2000);
+        assertThat(cohortDefinition.getParameters().size(), is(1));
+        assertThat(cohortDefinition.getOnOrAfter(), is(new Date(1000)));
+    }
+
+    @Test
+    public void testCopiesNestedDefinitions() {
+        ReportDefinition reportDefinition = new ReportDefinition();
+        reportDefinition.setName("Report");
+        SqlDataSetDefinition dataSetDefinition = new SqlDataSetDefinition();
+        dataSetDefinition.setName("Data set");
+        reportDefinition.addDataSetDefinition("dataSet", dataSetDefinition, new HashMap<String, Object>());
+
+        ReportDefinition copy = DefinitionCopier.copy(reportDefinition);
+
+        Mapped<?> mapped = copy.getDataSetDefinitions().get("dataSet");
+        assertNotSame(reportDefinition.getDataSetDefinitions().get("dataSet"), mapped);
+        assertNotSame(dataSetDefinition, mapped.getParameterizable());
+        assertThat(mapped.getParameterizable().getUuid(), is(dataSetDefinition.getUuid()));
+
+        copy.getDataSetDefinitions().clear();
+        assertThat(reportDefinition.getDataSetDefinitions().size(), is(1));
+    }
+
+}
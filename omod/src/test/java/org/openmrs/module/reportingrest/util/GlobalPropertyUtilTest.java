@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.util;
+
+import org.junit.Test;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class GlobalPropertyUtilTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String PROPERTY = "reportingrest.test.value";
+
+    @Test
+    public void testSeesSavedAndDeletedValuesRightAway() {
+        AdministrationService administrationService = Context.getAdministrationService();
+        assertThat(GlobalPropertyUtil.getInteger(PROPERTY, 1), is(1));
+
+        administrationService.setGlobalProperty(PROPERTY, "2");
+        assertThat(GlobalPropertyUtil.getInteger(PROPERTY, 1), is(2));
+
+        administrationService.purgeGlobalProperty(administrationService.getGlobalPropertyObject(PROPERTY));
+        assertThat(GlobalPropertyUtil.getInteger(PROPERTY, 1), is(1));
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThrows;
+
+public class RoaringBitmapCodecTest {
+
+    @Test
+    public void testEncodeMatchesReferenceImplementation() {
+        // what org.roaringbitmap.RoaringBitmap.bitmapOf(1, 2, 3) serializes to
+        assertThat(RoaringBitmapCodec.encode(Arrays.asList(3, 1, 2)), is("OjAAAAEAAAAAAAIAEAAAAAEAAgADAA=="));
+    }
+
+    @Test
+    public void testRoundTripWithArrayAndBitmapContainers() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 10000; ++i) {
+            ids.add(i * 3); // more than 4096 ids in the first container
+        }
+        ids.add(70000);
+        ids.add(Integer.MAX_VALUE);
+        Collections.shuffle(ids);
+
+        Set<Integer> decoded = RoaringBitmapCodec.decode(RoaringBitmapCodec.encode(ids));
+        assertThat(new ArrayList<Integer>(decoded), is(new ArrayList<Integer>(new TreeSet<Integer>(ids))));
+    }
+
+    @Test
+    public void testRoundTripEmpty() {
+        assertThat(RoaringBitmapCodec.decode(RoaringBitmapCodec.encode(Collections.<Integer>emptyList())).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDecodeRunContainer() {
+        // RoaringBitmap.bitmapOf(1, 2, 3, 4, 5) after runOptimize()
+        assertThat(RoaringBitmapCodec.decode("OzAAAAEAAAQAAQABAAQA"), contains(1, 2, 3, 4, 5));
+    }
+
+    @Test
+    public void testDecodeAcceptsUnescapedPlusSigns() {
+        Set<Integer> ids = new TreeSet<Integer>(Collections.singleton(48911));
+        String encoded = RoaringBitmapCodec.encode(ids);
+        assertThat(encoded, is("OjAAAAEAAAAAAAAAEAAAAA+/"));
+        assertThat(RoaringBitmapCodec.decode(encoded.replace('+', ' ')), is(ids));
+        assertThat(RoaringBitmapCodec.decode(encoded.replace('+', '-').replace('/', '_')), is(ids));
+    }
+
+    @Test
+    public void testDecodeRejectsGarbage() {
+        assertThrows(IllegalArgumentException.class, () -> RoaringBitmapCodec.decode("bm90IGEgYml0bWFw"));
+        assertThrows(IllegalArgumentException.class, () -> RoaringBitmapCodec.decode("OjAAAAEAAAA"));
+    }
+
+    @Test
+    public void testEncodeRejectsNegativeIds() {
+        assertThrows(IllegalArgumentException.class, () -> RoaringBitmapCodec.encode(Arrays.asList(-1, 5)));
+    }
+
+}
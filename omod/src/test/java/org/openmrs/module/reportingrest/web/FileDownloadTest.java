@@ -0,0 +1,112 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.web;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class FileDownloadTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileDownload download;
+
+    @Before
+    public void setUp() throws Exception {
+        File file = folder.newFile("report.csv");
+        Files.write(file.toPath(), "0123456789".getBytes(StandardCharsets.UTF_8));
+        download = new FileDownload(file, "report.csv", "text/csv", "abc");
+    }
+
+    @Test
+    public void testWholeFile() throws Exception {
+        MockHttpServletResponse response = write(new MockHttpServletRequest("GET", "/"));
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getContentAsString(), is("0123456789"));
+        assertThat(response.getHeader("Content-Length"), is("10"));
+        assertThat(response.getHeader("Accept-Ranges"), is("bytes"));
+        assertThat(response.getContentType(), is("text/csv"));
+        assertThat(response.getHeader("Content-Disposition"), is("attachment; filename=\"report.csv\""));
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        MockHttpServletResponse response = write(withHeader("Range", "bytes=2-4"));
+        assertThat(response.getStatus(), is(206));
+        assertThat(response.getContentAsString(), is("234"));
+        assertThat(response.getHeader("Content-Range"), is("bytes 2-4/10"));
+        assertThat(response.getHeader("Content-Length"), is("3"));
+
+        assertThat(write(withHeader("Range", "bytes=7-")).getContentAsString(), is("789"));
+        assertThat(write(withHeader("Range", "bytes=-2")).getContentAsString(), is("89"));
+        assertThat(write(withHeader("Range", "bytes=8-100")).getContentAsString(), is("89"));
+
+        response = write(withHeader("Range", "bytes=10-"));
+        assertThat(response.getStatus(), is(416));
+        assertThat(response.getHeader("Content-Range"), is("bytes */10"));
+
+        // multiple ranges are not supported, so we send everything
+        response = write(withHeader("Range", "bytes=0-1,4-5"));
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getContentAsString(), is("0123456789"));
+    }
+
+    @Test
+    public void testConditionalRequests() throws Exception {
+        String etag = write(new MockHttpServletRequest("GET", "/")).getHeader("ETag");
+
+        MockHttpServletResponse response = write(withHeader("If-None-Match", etag));
+        assertThat(response.getStatus(), is(304));
+        assertThat(response.getContentAsByteArray().length, is(0));
+
+        assertThat(write(withHeader("If-None-Match", "\"something-else\"")).getStatus(), is(200));
+        assertThat(write(withHeader("If-Modified-Since", System.currentTimeMillis() + 1000)).getStatus(), is(304));
+    }
+
+    @Test
+    public void testRangeIsIgnoredIfTheFileChanged() throws Exception {
+        MockHttpServletRequest request = withHeader("Range", "bytes=2-4");
+        request.addHeader("If-Range", "\"an-older-version\"");
+        MockHttpServletResponse response = write(request);
+        assertThat(response.getStatus(), is(200));
+        assertThat(response.getContentAsString(), is("0123456789"));
+    }
+
+    @Test
+    public void testContentInMemory() throws Exception {
+        download = new FileDownload("0123456789".getBytes(StandardCharsets.UTF_8), 0, "report.csv", "text/csv", "abc");
+        assertThat(write(withHeader("Range", "bytes=3-5")).getContentAsString(), is("345"));
+    }
+
+    private MockHttpServletRequest withHeader(String name, Object value) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader(name, value);
+        return request;
+    }
+
+    private MockHttpServletResponse write(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        download.write(request, response);
+        return response;
+    }
+
+}
@@ -1,15 +1,26 @@
 package org.openmrs.module.reportingrest.web.controller;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Assert;
 import org.junit.Test;
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.dataset.definition.SqlDataSetDefinition;
 import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
+import org.openmrs.module.reporting.report.ReportRequest;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.module.reporting.report.renderer.CsvReportRenderer;
+import org.openmrs.module.reporting.report.renderer.RenderingMode;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.cache.DefinitionCacheAdvice;
 import org.openmrs.module.webservices.rest.OpenmrsPathMatcher;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.response.ObjectNotFoundException;
+import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mock.web.MockHttpServletRequest;
@@ -20,21 +31,37 @@ import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandl
 import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThrows;
 
 public class ReportingRestControllerTest extends BaseModuleWebContextSensitiveTest {
 
     @Autowired
     ReportDefinitionService reportDefinitionService;
 
+    @Autowired
+    ReportService reportService;
+
+    @Autowired
+    ReportingRestController controller;
+
     @Autowired
     private RequestMappingHandlerAdapter handlerAdapter;
 
@@ -96,6 +123,106 @@ public class ReportingRestControllerTest extends BaseModuleWebContextSensitiveTe
         }
     }
 
+    @Test
+    public void testEvaluateReportDataSetUsesResultCacheWhenEnabled() throws Exception {
+        Context.getAdministrationService().setGlobalProperty("reportingrest.cache.reportDataSet.ttlSeconds", "60");
+        ReportDefinition rd = setupReportDefinition();
+        String restUrl = "/reportDataSet/" + rd.getUuid() + "/names";
+
+        MockHttpServletResponse first = handle(getRequest(restUrl, "gender", "F"));
+        MockHttpServletResponse second = handle(getRequest(restUrl, "gender", "F"));
+        assertThat(first.getHeader("X-Cache"), equalTo("MISS"));
+        assertThat(second.getHeader("X-Cache"), equalTo("HIT"));
+        assertThat(second.getHeader("ETag"), equalTo(first.getHeader("ETag")));
+        assertThat(((List) deserialize(second).get("rows")).size(), equalTo(3));
+        assertThat(handle(getRequest(restUrl, "gender", "M")).getHeader("X-Cache"), equalTo("MISS"));
+
+        MockHttpServletRequest conditional = getRequest(restUrl, "gender", "F");
+        conditional.addHeader("If-None-Match", first.getHeader("ETag"));
+        MockHttpServletResponse notModified = handle(conditional);
+        assertThat(notModified.getStatus(), equalTo(304));
+        assertThat(notModified.getContentLength(), equalTo(0));
+
+        // saving the definition drops the cached results
+        DefinitionCacheAdvice advice = new DefinitionCacheAdvice();
+        Context.addAdvice(ReportDefinitionService.class, advice);
+        try {
+            reportDefinitionService.saveDefinition(rd);
+        }
+        finally {
+            Context.removeAdvice(ReportDefinitionService.class, advice);
+        }
+        assertThat(handle(getRequest(restUrl, "gender", "F")).getHeader("X-Cache"), equalTo("MISS"));
+    }
+
+    @Test
+    public void testEvaluateReportDataSetDoesNotCacheByDefault() throws Exception {
+        ReportDefinition rd = setupReportDefinition();
+        MockHttpServletResponse response = handle(getRequest("/reportDataSet/" + rd.getUuid() + "/names", "gender", "F"));
+        assertThat(response.getHeader("X-Cache"), nullValue());
+    }
+
+    @Test
+    public void testEvaluationCacheRequiresPrivilege() throws Exception {
+        assertThat(handle(getRequest("/evaluationCache")).getStatus(), equalTo(200));
+
+        Context.logout();
+        assertThrows(APIAuthenticationException.class, () -> controller.getEvaluationCacheStatistics());
+        assertThrows(APIAuthenticationException.class, () -> controller.clearEvaluationCache());
+    }
+
+    @Test
+    public void testDownloadMultipleReportsAsZip() throws Exception {
+        ReportDefinition rd = setupReportDefinition();
+        ReportRequest first = saveReportRequestWithOutput(rd, "first,report");
+        ReportRequest second = saveReportRequestWithOutput(rd, "second,report");
+
+        MockHttpServletResponse response = handle(getRequest("/downloadMultipleReports",
+                "reportRequestUuids", first.getUuid() + "," + second.getUuid(), "format", "zip"));
+
+        assertThat(response.getContentType(), equalTo("application/zip"));
+        Map<String, String> entries = new LinkedHashMap<>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(response.getContentAsByteArray()));
+        for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+            entries.put(entry.getName(), IOUtils.toString(zip, StandardCharsets.UTF_8));
+        }
+        assertThat(entries.size(), equalTo(2));
+        // both have the same file name, so the second one is renamed
+        assertThat(new ArrayList<>(entries.values()), contains("first,report", "second,report"));
+        String fileName = new ArrayList<>(entries.keySet()).get(0);
+        assertThat(new ArrayList<>(entries.keySet()).get(1), equalTo("2_" + fileName));
+    }
+
+    @Test
+    public void testDownloadMultipleReportsAsZipFailsBeforeWritingIfAnOutputIsMissing() throws Exception {
+        ReportDefinition rd = setupReportDefinition();
+        ReportRequest withOutput = saveReportRequestWithOutput(rd, "first,report");
+        ReportRequest withoutOutput = new ReportRequest();
+        withoutOutput.setReportDefinition(new Mapped<ReportDefinition>(rd, new HashMap<String, Object>()));
+        withoutOutput.setRenderingMode(new RenderingMode(new CsvReportRenderer(), "CSV", null, 0));
+        withoutOutput.setStatus(ReportRequest.Status.FAILED);
+        reportService.saveReportRequest(withoutOutput);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThrows(ObjectNotFoundException.class, () -> controller.downloadMultipleReportsAsZip(response,
+                withOutput.getUuid() + "," + withoutOutput.getUuid()));
+        assertThat(response.isCommitted(), equalTo(false));
+        assertThat(response.getContentAsByteArray().length, equalTo(0));
+    }
+
+    private ReportRequest saveReportRequestWithOutput(ReportDefinition rd, String output) throws Exception {
+        ReportRequest request = new ReportRequest();
+        request.setReportDefinition(new Mapped<ReportDefinition>(rd, new HashMap<String, Object>()));
+        request.setRenderingMode(new RenderingMode(new CsvReportRenderer(), "CSV", null, 0));
+        request.setStatus(ReportRequest.Status.COMPLETED);
+        reportService.saveReportRequest(request);
+        File reportsDirectory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("reporting/reports");
+        File file = new File(reportsDirectory, request.getUuid() + ".out");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, output, StandardCharsets.UTF_8);
+        return request;
+    }
+
     void assertRow(Map row, Object... keysAndValues) {
         for (int i = 0; i < keysAndValues.length; i += 2) {
             assertThat(row.get(keysAndValues[i].toString()), equalTo(keysAndValues[i + 1]));
@@ -29,11 +29,14 @@ import org.openmrs.module.reporting.data.patient.library.BuiltInPatientDataLibra
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reportingrest.adhoc.AdHocDataSet;
+import org.openmrs.module.reportingrest.adhoc.AdHocExportManager;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.Hyperlink;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.representation.NamedRepresentation;
 import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
 
 import java.io.IOException;
 import java.util.List;
@@ -50,6 +53,9 @@ public class AdHocDataSetResourceTest extends BaseModuleWebContextSensitiveTest
     @Autowired
     DataSetDefinitionService dataSetDefinitionService;
 
+    @Autowired
+    AdHocExportManager adHocExportManager;
+
     @Test
     public void testCreate() throws Exception {
         ObjectMapper jackson = new ObjectMapper();
@@ -188,4 +194,25 @@ public class AdHocDataSetResourceTest extends BaseModuleWebContextSensitiveTest
         assertThat(dataSetDefinitionService.getDefinitionByUuid(created.getUuid()), nullValue());
     }
 
+    @Test
+    public void testGetAllPagesThroughUsersDataSets() throws Exception {
+        for (String name : new String[] { "Second", "First", "Third" }) {
+            PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+            dsd.setName(name);
+            adHocExportManager.saveAdHocDataSet(dsd);
+        }
+
+        RequestContext context = new RequestContext();
+        context.setRequest(new MockHttpServletRequest());
+        context.setStartIndex(1);
+        context.setLimit(1);
+
+        SimpleObject result = new AdHocDataSetResource().getAll(context);
+        List<AdHocExportManager.AdHocDataSet> results = (List<AdHocExportManager.AdHocDataSet>) result.get("results");
+        assertThat(results.size(), is(1));
+        assertThat(results.get(0).getName(), is("Second"));
+        assertThat((Integer) result.get("totalCount"), is(3));
+        assertThat(((List<Hyperlink>) result.get("links")).size(), is(2));
+    }
+
 }
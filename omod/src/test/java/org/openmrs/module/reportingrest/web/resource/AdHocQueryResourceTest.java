@@ -20,7 +20,9 @@ import org.codehaus.jackson.node.ObjectNode;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
+import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.api.context.Context;
 import org.openmrs.contrib.testdata.TestDataManager;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.library.BuiltInCohortDefinitionLibrary;
@@ -28,7 +30,12 @@ import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionSe
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.library.BuiltInPatientDataLibrary;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.query.IdSet;
+import org.openmrs.module.reportingrest.SampledIdSet;
+import org.openmrs.module.reportingrest.adhoc.AdHocRowFilter;
+import org.openmrs.module.reportingrest.cache.RowFilterResultCache;
 import org.openmrs.module.reportingrest.web.AdHocRowFilterResults;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
@@ -40,10 +47,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
 import static org.hamcrest.core.Is.is;
 
@@ -55,6 +65,15 @@ public class AdHocQueryResourceTest extends BaseModuleWebContextSensitiveTest {
     @Autowired
     CohortDefinitionService cohortDefinitionService;
 
+    @Autowired
+    RowFilterResultCache rowFilterResultCache;
+
+    @Before
+    public void setUp() {
+        // results from other tests' data must not be served from the cache
+        rowFilterResultCache.clear();
+    }
+
     @Test
     public void testRowFilterQuery() throws Exception {
         ObjectMapper jackson = new ObjectMapper();
@@ -76,6 +95,42 @@ public class AdHocQueryResourceTest extends BaseModuleWebContextSensitiveTest {
         assertThat(result.getIndividualResults().get(2), hasExactlyIds(2, 6, 7));
     }
 
+    @Test
+    public void testUnchangedRowFiltersAreServedFromCache() throws Exception {
+        Context.getAdministrationService().setGlobalProperty(RowFilterResultCache.GP_TTL_SECONDS, "300");
+        ObjectMapper jackson = new ObjectMapper();
+        RequestContext requestContext = new RequestContext();
+        requestContext.setRepresentation(new NamedRepresentation("rowFilters"));
+
+        AdHocRowFilterResults first = (AdHocRowFilterResults) new AdHocQueryResource().create(jackson.readValue(adHocDataExportAsJson(jackson), SimpleObject.class), requestContext);
+        assertThat(first.getIndividualResultsFromCache(), contains(false, false, false));
+
+        // change the parameters of the last row filter only
+        ObjectNode post = (ObjectNode) jackson.readTree(adHocDataExportAsJson(jackson));
+        parameterValues((ObjectNode) post.get("rowFilters").get(2)).put("minAge", 150);
+        AdHocRowFilterResults second = (AdHocRowFilterResults) new AdHocQueryResource().create(jackson.readValue(jackson.writeValueAsString(post), SimpleObject.class), requestContext);
+
+        assertThat(second.getIndividualResultsFromCache(), contains(true, true, false));
+        assertThat(second.getIndividualResults().get(0), hasExactlyIds(2, 6));
+        assertThat(second.getIndividualResults().get(1), hasExactlyIds(2, 7));
+        assertThat(second.getIndividualResults().get(2).getSize(), is(0));
+    }
+
+    @Test
+    public void testCustomRowFilterCombinationIsComputedFromRowFilterResults() throws Exception {
+        ObjectMapper jackson = new ObjectMapper();
+        SimpleObject post = jackson.readValue(adHocDataExportAsJson(jackson), SimpleObject.class);
+        post.put("customRowFilterCombination", "1 and not (2 or 3 and 2)");
+
+        RequestContext requestContext = new RequestContext();
+        requestContext.setRepresentation(new NamedRepresentation("rowFilters"));
+
+        AdHocRowFilterResults result = (AdHocRowFilterResults) new AdHocQueryResource().create(post, requestContext);
+
+        // male AND NOT encounter during period, since operators are applied left to right
+        assertThat(result.getResult(), hasExactlyIds(6));
+    }
+
     @Test
     public void testPreview() throws Exception {
         ObjectMapper jackson = new ObjectMapper();
@@ -90,6 +145,85 @@ public class AdHocQueryResourceTest extends BaseModuleWebContextSensitiveTest {
         System.out.println(toJson(result));
     }
 
+    @Test
+    public void testPreviewCountsAllRowsWhenItLooksAtAllPatients() throws Exception {
+        ObjectMapper jackson = new ObjectMapper();
+        String json = adHocDataExportAsJson(jackson);
+
+        RequestContext requestContext = new RequestContext();
+        requestContext.setRepresentation(new NamedRepresentation("preview"));
+
+        SimpleObject result = (SimpleObject) new AdHocQueryResource().create(jackson.readValue(json, SimpleObject.class), requestContext);
+
+        // the standard test data set has fewer patients than the first chunk, so the count is exact
+        IdSet<?> allRows = (IdSet<?>) result.get("allRows");
+        assertThat(allRows, hasExactlyIds(2, 6, 7));
+        assertThat(allRows.getSize(), is(3));
+        assertThat(((SampledIdSet) allRows).isEstimated(), is(false));
+    }
+
+    @Test
+    public void testPreviewEvaluatesOnAllPatientsAfterTooManyChunks() throws Exception {
+        ObjectMapper jackson = new ObjectMapper();
+        String json = adHocDataExportAsJson(jackson);
+
+        RequestContext requestContext = new RequestContext();
+        requestContext.setRepresentation(new NamedRepresentation("preview"));
+
+        final AtomicInteger rowFilterEvaluations = new AtomicInteger();
+        AdHocQueryResource resource = new AdHocQueryResource() {
+
+            @Override
+            List<Set<Integer>> evaluateRowFilters(List<AdHocRowFilter> rowFilters, List<Mapped> queries,
+                                                  EvaluationContext evaluationContext, List<Boolean> fromCache) {
+                rowFilterEvaluations.incrementAndGet();
+                return super.evaluateRowFilters(rowFilters, queries, evaluationContext, fromCache);
+            }
+        };
+        // one patient at a time would take more chunks than there are patients
+        resource.previewFirstChunkSize = 1;
+        resource.previewMaxChunks = 1;
+        SimpleObject result = (SimpleObject) resource.create(jackson.readValue(json, SimpleObject.class), requestContext);
+
+        // one chunk, then all patients
+        assertThat(rowFilterEvaluations.get(), is(2));
+        IdSet<?> allRows = (IdSet<?>) result.get("allRows");
+        assertThat(allRows, hasExactlyIds(2, 6, 7));
+        assertThat(((SampledIdSet) allRows).isEstimated(), is(false));
+    }
+
+    @Test
+    public void testPreviewStopsChunkingIfRowFiltersIgnoreTheBaseCohort() throws Exception {
+        ObjectMapper jackson = new ObjectMapper();
+        String json = adHocDataExportAsJson(jackson);
+
+        RequestContext requestContext = new RequestContext();
+        requestContext.setRepresentation(new NamedRepresentation("preview"));
+
+        final AtomicInteger rowFilterEvaluations = new AtomicInteger();
+        AdHocQueryResource resource = new AdHocQueryResource() {
+
+            @Override
+            List<Set<Integer>> evaluateRowFilters(List<AdHocRowFilter> rowFilters, List<Mapped> queries,
+                                                  EvaluationContext evaluationContext, List<Boolean> fromCache) {
+                rowFilterEvaluations.incrementAndGet();
+                // like an evaluator that evaluates on all patients, whatever the base cohort
+                EvaluationContext allPatients = new EvaluationContext();
+                allPatients.setParameterValues(evaluationContext.getParameterValues());
+                allPatients.setEvaluationDate(evaluationContext.getEvaluationDate());
+                return super.evaluateRowFilters(rowFilters, queries, allPatients, fromCache);
+            }
+        };
+        resource.previewFirstChunkSize = 1;
+        SimpleObject result = (SimpleObject) resource.create(jackson.readValue(json, SimpleObject.class), requestContext);
+
+        // one chunk, then all patients, rather than up to PREVIEW_MAX_CHUNKS chunks
+        assertThat(rowFilterEvaluations.get(), is(2));
+        IdSet<?> allRows = (IdSet<?>) result.get("allRows");
+        assertThat(allRows, hasExactlyIds(2, 6, 7));
+        assertThat(((SampledIdSet) allRows).isEstimated(), is(false));
+    }
+
     @Test
     public void testPreviewWithNoFilters() throws Exception {
         ObjectMapper jackson = new ObjectMapper();
@@ -14,18 +14,31 @@
 
 package org.openmrs.module.reportingrest.web.resource;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.library.BuiltInCohortDefinitionLibrary;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reportingrest.async.EvaluationJobManager;
+import org.openmrs.module.reportingrest.util.RoaringBitmapCodec;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.representation.NamedRepresentation;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThrows;
@@ -66,6 +79,125 @@ public class EvaluatedCohortResourceTest extends BaseEvaluatedResourceTest<Evalu
 		assertCohortMembers(evaluated, json, expectedUuids);
 	}
 
+	@Test
+	public void testEvaluateUsesResultCacheWhenEnabled() throws Exception {
+		Context.getAdministrationService().setGlobalProperty("reportingrest.cache.cohort.ttlSeconds", "60");
+
+		RequestContext first = buildRequestContext();
+		first.setResponse(new MockHttpServletResponse());
+		getResource().retrieve(UUID, first);
+		RequestContext second = buildRequestContext();
+		second.setResponse(new MockHttpServletResponse());
+		Object evaluated = getResource().retrieve(UUID, second);
+
+		MockHttpServletResponse firstResponse = (MockHttpServletResponse) first.getResponse();
+		MockHttpServletResponse secondResponse = (MockHttpServletResponse) second.getResponse();
+		assertThat(firstResponse.getHeader("X-Cache"), is("MISS"));
+		assertThat(secondResponse.getHeader("X-Cache"), is("HIT"));
+		assertThat(secondResponse.getHeader("ETag"), is(firstResponse.getHeader("ETag")));
+		assertThat(secondResponse.getHeader("Cache-Control"), startsWith("private, max-age="));
+		assertThat((String) path(evaluated, "definition", "uuid"), is(UUID));
+	}
+
+	@Test
+	public void testEvaluateDoesNotCacheByDefault() throws Exception {
+		RequestContext context = buildRequestContext();
+		context.setResponse(new MockHttpServletResponse());
+		getResource().retrieve(UUID, context);
+		assertThat(((MockHttpServletResponse) context.getResponse()).getHeader("X-Cache"), nullValue());
+	}
+
+	@Test
+	public void testAsyncEvaluationReturnsJob() throws Exception {
+		RequestContext context = buildRequestContext("async", "true");
+		context.setResponse(new MockHttpServletResponse());
+		SimpleObject job = (SimpleObject) getResource().retrieve(UUID, context);
+
+		assertThat(((MockHttpServletResponse) context.getResponse()).getStatus(), is(202));
+		assertThat((String) job.get("definitionUuid"), is(UUID));
+		assertThat((String) job.get("resource"), is("cohort"));
+
+		EvaluationJobManager jobManager = Context.getRegisteredComponents(EvaluationJobManager.class).get(0);
+		assertThat(jobManager.getJob((String) job.get("uuid")).getUuid(), is(job.get("uuid")));
+		jobManager.cancelJob((String) job.get("uuid"));
+	}
+
+	@Test
+	public void testStreamingMembers() throws Exception {
+		RequestContext context = buildRequestContext("stream", "true");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		context.setResponse(response);
+
+		assertThat(getResource().retrieve(UUID, context), nullValue());
+
+		String[] lines = response.getContentAsString().split("\n");
+		assertThat(lines.length, is(2));
+		List<String> uuids = new ArrayList<String>();
+		for (String line : lines) {
+			uuids.add((String) new ObjectMapper().readValue(line, Map.class).get("uuid"));
+		}
+		assertThat(uuids, containsInAnyOrder("da7f524f-27ce-4bb2-86d6-6d1d05312bd5", "a7e04421-525f-442f-8138-05b619d16def"));
+	}
+
+	@Test
+	public void testCountRepresentation() throws Exception {
+		RequestContext context = buildRequestContext();
+		context.setRepresentation(new NamedRepresentation(EvaluatedCohortResource.COUNT_REPRESENTATION));
+		Object evaluated = getResource().retrieve(UUID, context);
+
+		assertThat((Integer) path(evaluated, "count"), is(2));
+		assertThat((String) path(evaluated, "uuid"), is(UUID));
+		assertThat(path(evaluated, "members"), nullValue());
+		assertTrue(hasLink(evaluated, "self", "/cohort/" + UUID));
+	}
+
+	@Test
+	public void testCountIsCachedUnderSameKeyAsFullEvaluation() throws Exception {
+		Context.getAdministrationService().setGlobalProperty("reportingrest.cache.cohort.ttlSeconds", "60");
+
+		RequestContext full = buildRequestContext();
+		full.setResponse(new MockHttpServletResponse());
+		getResource().retrieve(UUID, full);
+
+		RequestContext count = buildRequestContext();
+		count.setRepresentation(new NamedRepresentation(EvaluatedCohortResource.COUNT_REPRESENTATION));
+		count.setResponse(new MockHttpServletResponse());
+		Object evaluated = getResource().retrieve(UUID, count);
+
+		assertThat(((MockHttpServletResponse) count.getResponse()).getHeader("X-Cache"), is("HIT"));
+		assertThat((Integer) path(evaluated, "count"), is(2));
+	}
+
+	@Test
+	public void testCachedCountDoesNotSatisfyFullEvaluation() throws Exception {
+		Context.getAdministrationService().setGlobalProperty("reportingrest.cache.cohort.ttlSeconds", "60");
+
+		RequestContext count = buildRequestContext();
+		count.setRepresentation(new NamedRepresentation(EvaluatedCohortResource.COUNT_REPRESENTATION));
+		count.setResponse(new MockHttpServletResponse());
+		getResource().retrieve(UUID, count);
+
+		RequestContext full = buildRequestContext();
+		full.setResponse(new MockHttpServletResponse());
+		Object evaluated = getResource().retrieve(UUID, full);
+
+		assertThat(((MockHttpServletResponse) count.getResponse()).getHeader("X-Cache"), is("MISS"));
+		assertThat(((MockHttpServletResponse) full.getResponse()).getHeader("X-Cache"), is("MISS"));
+		assertThat(((List) path(evaluated, "members")).size(), is(2));
+	}
+
+	@Test
+	public void testBitmapRepresentation() throws Exception {
+		RequestContext context = buildRequestContext();
+		context.setRepresentation(new NamedRepresentation(EvaluatedCohortResource.BITMAP_REPRESENTATION));
+		Object evaluated = getResource().retrieve(UUID, context);
+
+		assertThat((Integer) path(evaluated, "count"), is(2));
+		assertThat(path(evaluated, "members"), nullValue());
+		Set<Integer> memberIds = RoaringBitmapCodec.decode((String) path(evaluated, "bitmap"));
+		assertThat(memberIds, containsInAnyOrder(2, 6));
+	}
+
 	@Test
 	public void testEvaluateBuiltInDefinitionWithNoParameters() throws Exception {
 		Object evaluated = getResource().retrieve(BuiltInCohortDefinitionLibrary.PREFIX + "males", buildRequestContext());
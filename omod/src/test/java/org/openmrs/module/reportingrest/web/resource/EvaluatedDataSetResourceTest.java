@@ -14,16 +14,22 @@
 
 package org.openmrs.module.reportingrest.web.resource;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Cohort;
 import org.openmrs.api.LocationService;
+import org.openmrs.module.reporting.cohort.Cohorts;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.EncounterCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.common.SortCriteria;
 import org.openmrs.module.reporting.dataset.DataSet;
 import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.data.patient.definition.PatientIdDataDefinition;
 import org.openmrs.module.reporting.dataset.MapDataSet;
+import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.SqlDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.definition.DefinitionContext;
@@ -32,16 +38,33 @@ import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
 import org.openmrs.module.reporting.evaluation.parameter.Parameterizable;
 import org.openmrs.module.reporting.evaluation.parameter.ParameterizableUtil;
+import org.openmrs.module.reportingrest.util.RoaringBitmapCodec;
+import org.openmrs.module.reportingrest.web.JsonLinesWriter;
 import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.Hyperlink;
 import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.module.webservices.rest.web.representation.NamedRepresentation;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletResponse;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.core.Is.is;
 
 /**
@@ -75,6 +98,150 @@ public class EvaluatedDataSetResourceTest extends BaseEvaluatedResourceTest<Eval
         assertThat((Integer) firstRow.get("PATIENT_ID"), is(6));
     }
 
+    @Test
+    public void testStreamingRows() throws Exception {
+        RequestContext context = buildRequestContext("stream", "true");
+        MockHttpServletResponse httpResponse = new MockHttpServletResponse();
+        context.setResponse(httpResponse);
+
+        Object response = getResource().retrieve("d9c79890-7ea9-41b1-a068-b5b99ca3d593", context);
+        assertThat(response, nullValue());
+        assertThat(httpResponse.getContentType(), startsWith(JsonLinesWriter.CONTENT_TYPE));
+
+        String[] lines = httpResponse.getContentAsString().split("\n");
+        assertThat(lines.length, is(5));
+        Map<String, Object> firstRow = new ObjectMapper().readValue(lines[0], Map.class);
+        assertThat((Integer) firstRow.get("PATIENT_ID"), is(6));
+    }
+
+    @Test
+    public void testColumnarRepresentation() throws Exception {
+        RequestContext context = buildRequestContext();
+        context.setRepresentation(new NamedRepresentation(EvaluatedDataSetResource.COLUMNAR_REPRESENTATION));
+        SimpleObject response = (SimpleObject) getResource().retrieve("d9c79890-7ea9-41b1-a068-b5b99ca3d593", context);
+
+        assertThat((String) path(response, "metadata", "columns", 0, "name"), is("PATIENT_ID"));
+        assertThat(response.get("rows"), nullValue());
+        List columnValues = (List) response.get("columnValues");
+        assertThat(columnValues.size(), is(((List) path(response, "metadata", "columns")).size()));
+        List patientIds = (List) columnValues.get(0);
+        assertThat(patientIds.size(), is(5));
+        assertThat((Integer) patientIds.get(0), is(6));
+    }
+
+    @Test
+    public void testPagingRows() throws Exception {
+        RequestContext context = buildRequestContext("startIndex", "2", "limit", "2");
+        context.setStartIndex(2);
+        context.setLimit(2);
+        SimpleObject response = (SimpleObject) getResource().retrieve("d9c79890-7ea9-41b1-a068-b5b99ca3d593", context);
+
+        assertThat(((List) response.get("rows")).size(), is(2));
+        assertThat((Integer) response.get("totalCount"), is(5));
+        assertThat(linkRels(response), hasItems("next", "prev"));
+    }
+
+    @Test
+    public void testPagingPatientDataSetRestrictsBaseCohort() throws Exception {
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setName("Patient ids");
+        dsd.addColumn("PATIENT_ID", new PatientIdDataDefinition(), "");
+        dsd.setUuid("uuid-for-patient-dsd");
+        dataSetDefinitionService.saveDefinition(dsd);
+
+        RequestContext context = buildRequestContext("limit", "2");
+        context.setLimit(2);
+        SimpleObject response = (SimpleObject) getResource().retrieve("uuid-for-patient-dsd", context);
+
+        List<Integer> allPatientIds = new ArrayList<Integer>(new TreeSet<Integer>(Cohorts.allPatients(new EvaluationContext()).getMemberIds()));
+        assertThat((Integer) response.get("totalCount"), is(allPatientIds.size()));
+        List<Map<String, Object>> rows = (List<Map<String, Object>>) response.get("rows");
+        assertThat(rows.size(), is(2));
+        Set<Object> returnedIds = new HashSet<Object>();
+        for (Map<String, Object> row : rows) {
+            returnedIds.add(row.get("PATIENT_ID"));
+        }
+        assertThat(returnedIds, containsInAnyOrder((Object) allPatientIds.get(0), allPatientIds.get(1)));
+        assertThat(linkRels(response), hasItem("next"));
+        assertThat(linkRels(response), not(hasItem("prev")));
+    }
+
+    @Test
+    public void testPagingPatientDataSetAppliesRowFilters() throws Exception {
+        GenderCohortDefinition males = new GenderCohortDefinition();
+        males.setMaleIncluded(true);
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setName("Male patient ids");
+        dsd.addColumn("PATIENT_ID", new PatientIdDataDefinition(), "");
+        dsd.addRowFilter(males, "");
+        dsd.setUuid("uuid-for-patient-dsd");
+        dataSetDefinitionService.saveDefinition(dsd);
+
+        RequestContext context = buildRequestContext("startIndex", "1", "limit", "1");
+        context.setStartIndex(1);
+        context.setLimit(1);
+        SimpleObject response = (SimpleObject) getResource().retrieve("uuid-for-patient-dsd", context);
+
+        List<Integer> maleIds = new ArrayList<Integer>(new TreeSet<Integer>(cohortDefinitionService.evaluate(males,
+                new EvaluationContext()).getMemberIds()));
+        assertThat((Integer) response.get("totalCount"), is(maleIds.size()));
+        List<Map<String, Object>> rows = (List<Map<String, Object>>) response.get("rows");
+        assertThat(rows.size(), is(1));
+        assertThat(rows.get(0).get("PATIENT_ID"), is((Object) maleIds.get(1)));
+        PatientDataSetDefinition saved = (PatientDataSetDefinition) dataSetDefinitionService.getDefinitionByUuid("uuid-for-patient-dsd");
+        assertThat(saved.getRowFilters().size(), is(1));
+    }
+
+    @Test
+    public void testPagingSortedPatientDataSetFollowsTheSortOrder() throws Exception {
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setName("Patient ids, highest first");
+        dsd.addColumn("PATIENT_ID", new PatientIdDataDefinition(), "");
+        dsd.addSortCriteria("PATIENT_ID", SortCriteria.SortDirection.DESC);
+        dsd.setUuid("uuid-for-patient-dsd");
+        dataSetDefinitionService.saveDefinition(dsd);
+
+        RequestContext context = buildRequestContext("startIndex", "1", "limit", "2");
+        context.setStartIndex(1);
+        context.setLimit(2);
+        SimpleObject response = (SimpleObject) getResource().retrieve("uuid-for-patient-dsd", context);
+
+        List<Integer> allPatientIds = new ArrayList<Integer>(new TreeSet<Integer>(Cohorts.allPatients(new EvaluationContext()).getMemberIds()));
+        Collections.reverse(allPatientIds);
+        assertThat((Integer) response.get("totalCount"), is(allPatientIds.size()));
+        List<Map<String, Object>> rows = (List<Map<String, Object>>) response.get("rows");
+        assertThat(rows.size(), is(2));
+        assertThat(rows.get(0).get("PATIENT_ID"), is((Object) allPatientIds.get(1)));
+        assertThat(rows.get(1).get("PATIENT_ID"), is((Object) allPatientIds.get(2)));
+    }
+
+    @Test
+    public void testBaseCohortFromBitmap() throws Exception {
+        PatientDataSetDefinition dsd = new PatientDataSetDefinition();
+        dsd.setName("Patient ids");
+        dsd.addColumn("PATIENT_ID", new PatientIdDataDefinition(), "");
+        dsd.setUuid("uuid-for-patient-dsd");
+        dataSetDefinitionService.saveDefinition(dsd);
+
+        String bitmap = RoaringBitmapCodec.encode(Arrays.asList(2, 7));
+        SimpleObject response = (SimpleObject) getResource().retrieve("uuid-for-patient-dsd",
+                buildRequestContext(EvaluatedResource.BASE_COHORT_BITMAP_PARAMETER, bitmap));
+
+        Set<Object> returnedIds = new HashSet<Object>();
+        for (Map<String, Object> row : (List<Map<String, Object>>) response.get("rows")) {
+            returnedIds.add(row.get("PATIENT_ID"));
+        }
+        assertThat(returnedIds, containsInAnyOrder((Object) 2, 7));
+    }
+
+    private List<String> linkRels(SimpleObject response) {
+        List<String> rels = new ArrayList<String>();
+        for (Hyperlink link : (List<Hyperlink>) response.get("links")) {
+            rels.add(link.getRel());
+        }
+        return rels;
+    }
+
     @Test
     public void testEvaluatingDsdWithParametersUsingGet() throws Exception {
         saveDsdWithParams();
@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ * <p>
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.reportingrest.web.resource;
+
+import org.junit.Test;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.openmrs.module.reporting.report.ReportRequest;
+import org.openmrs.module.reporting.report.definition.ReportDefinition;
+import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
+import org.openmrs.module.reporting.report.renderer.CsvReportRenderer;
+import org.openmrs.module.reporting.report.renderer.RenderingMode;
+import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.RequestContext;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ReportDefinitionsWithScheduledRequestsResourceTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private ReportDefinitionService reportDefinitionService;
+
+    @Autowired
+    private ReportService reportService;
+
+    @Test
+    public void testGetAllPagesThroughDefinitionsSortedByName() throws Exception {
+        ReportDefinition second = saveReportDefinition("Second");
+        ReportDefinition first = saveReportDefinition("First");
+        saveReportDefinition("Third");
+        saveScheduledRequest(first, ReportRequest.Status.SCHEDULED);
+        saveScheduledRequest(first, ReportRequest.Status.COMPLETED);
+        saveScheduledRequest(second, ReportRequest.Status.SCHEDULE_COMPLETED);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("sortBy", "name");
+        request.addParameter("limit", "2");
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setLimit(2);
+
+        SimpleObject result = new ReportDefinitionsWithScheduledRequestsResource().getAll(context);
+        List<Map<String, Object>> results = (List<Map<String, Object>>) result.get("results");
+        assertThat(results.size(), is(2));
+        assertThat((String) ((Map) results.get(0).get("reportDefinition")).get("name"), is("First"));
+        assertThat(((List) results.get(0).get("scheduledRequests")).size(), is(1));
+        assertThat((String) ((Map) results.get(1).get("reportDefinition")).get("name"), is("Second"));
+        assertThat(((List) results.get(1).get("scheduledRequests")).size(), is(1));
+        assertThat(((List) result.get("links")).size(), is(1));
+    }
+
+    @Test
+    public void testGetAllReturnsAllDefinitionsUnlessPagingIsRequested() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            saveReportDefinition("Definition " + i);
+        }
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        RequestContext context = new RequestContext();
+        context.setRequest(request);
+        context.setLimit(2);
+
+        SimpleObject result = new ReportDefinitionsWithScheduledRequestsResource().getAll(context);
+        List<Map<String, Object>> results = (List<Map<String, Object>>) result.get("results");
+        assertThat(results.size(), is(reportDefinitionService.getAllDefinitions(false).size()));
+        assertThat(result.containsKey("links"), is(false));
+        assertThat(result.containsKey("totalCount"), is(false));
+    }
+
+    private ReportDefinition saveReportDefinition(String name) {
+        ReportDefinition reportDefinition = new ReportDefinition();
+        reportDefinition.setName(name);
+        return reportDefinitionService.saveDefinition(reportDefinition);
+    }
+
+    private void saveScheduledRequest(ReportDefinition reportDefinition, ReportRequest.Status status) {
+        ReportRequest request = new ReportRequest();
+        request.setReportDefinition(new Mapped<ReportDefinition>(reportDefinition, new HashMap<String, Object>()));
+        request.setRenderingMode(new RenderingMode(new CsvReportRenderer(), "CSV", null, 0));
+        request.setStatus(status);
+        request.setSchedule("0 0 1 * * ?");
+        reportService.saveReportRequest(request);
+    }
+
+}
@@ -4,10 +4,12 @@ import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.module.reporting.dataset.definition.SqlDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
 import org.openmrs.module.reporting.evaluation.parameter.Parameter;
 import org.openmrs.module.reporting.evaluation.parameter.ParameterizableUtil;
 import org.openmrs.module.reporting.report.ReportDesign;
@@ -15,7 +17,10 @@ import org.openmrs.module.reporting.report.ReportRequest;
 import org.openmrs.module.reporting.report.definition.ReportDefinition;
 import org.openmrs.module.reporting.report.definition.service.ReportDefinitionService;
 import org.openmrs.module.reporting.report.renderer.CsvReportRenderer;
+import org.openmrs.module.reporting.report.renderer.RenderingMode;
 import org.openmrs.module.reporting.report.service.ReportService;
+import org.openmrs.module.reportingrest.async.ReportQueueDispatcher;
+import org.openmrs.module.reportingrest.cache.RenderingModeCache;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.api.RestService;
@@ -25,10 +30,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mock.web.MockHttpServletRequest;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -109,6 +116,10 @@ public class ReportRequestResourceTest extends BaseModuleWebContextSensitiveTest
 
 
 		executeDataSet("ReportRequestTest.xml");
+
+		// process the queue on the test thread, which can see the uncommitted test data
+		Context.getAdministrationService().saveGlobalProperty(new GlobalProperty(ReportQueueDispatcher.GP_WORKERS, "0"));
+		Context.getRegisteredComponents(RenderingModeCache.class).get(0).clear();
 	}
 	
 	private ReportRequestResource getResource() {
@@ -167,6 +178,23 @@ public class ReportRequestResourceTest extends BaseModuleWebContextSensitiveTest
 		assertNull(request.getBaseCohort());
 	}
 
+	@Test
+	public void testCreateKeepsSubmittedPriority() throws Exception {
+		String reportRequestJson = "{\n" +
+				"  \"priority\": \"LOW\",\n" +
+				"  \"reportDefinition\":" + REPORT_DEFINITION_JSON + ",\n" +
+				"  \"schedule\": \"0 56 11 ? * 3\",\n" +
+				"  \"renderingMode\":" + RENDERER_MODE_JSON +
+				"}";
+
+		SimpleObject properties = SimpleObject.parseJson(reportRequestJson);
+		RequestContext context = new RequestContext();
+		context.setRepresentation(Representation.DEFAULT);
+		SimpleObject response = (SimpleObject) getResource().create(properties, context);
+		assertEquals(ReportRequest.Priority.LOW, response.get("priority"));
+		assertEquals(ReportRequest.Priority.LOW, getResource().getByUniqueId((String) response.get("uuid")).getPriority());
+	}
+
 	@Test
 	public void testCreateWithReportDefinitionAndBaseCohortAsParameters() throws Exception {
 		String cohortDefinitionJson = "{"
@@ -213,6 +241,23 @@ public class ReportRequestResourceTest extends BaseModuleWebContextSensitiveTest
 				request.getRenderingMode().toString());
 	}
 	
+	@Test
+	public void testRenderingModesAreCachedUntilADesignIsSaved() throws Exception {
+		RenderingModeCache cache = Context.getRegisteredComponents(RenderingModeCache.class).get(0);
+		ReportDefinition reportDefinition = reportDefinitionService.getDefinitionByUuid(REPORT_DEFINITION_UUID);
+		List<RenderingMode> before = cache.getRenderingModes(reportDefinition);
+		assertThat(cache.getRenderingModes(reportDefinition), sameInstance(before));
+
+		ReportDesign reportDesign = new ReportDesign();
+		reportDesign.setName("Another CSV");
+		reportDesign.setRendererType(CsvReportRenderer.class);
+		reportDesign.setReportDefinition(reportDefinition);
+		((ReportDesignResource) Context.getService(RestService.class).getResourceBySupportedClass(ReportDesign.class))
+				.save(reportDesign);
+
+		assertThat(cache.getRenderingModes(reportDefinition).size(), is(before.size() + 1));
+	}
+
 	@Test
 	public void testGetOne() throws Exception {
 		ReportRequest request = getResource().getByUniqueId(REPORT_REQUEST_UUID);
@@ -229,6 +274,49 @@ public class ReportRequestResourceTest extends BaseModuleWebContextSensitiveTest
 		assertThat((String) results.get(0).get("uuid"), is(REPORT_REQUEST_UUID));
 	}
 	
+	@Test
+	public void testSearchSortsAcrossPages() throws Exception {
+		// the saved request in the test data has HIGHEST priority and was requested in 2015
+		saveReportRequest(ReportRequest.Priority.LOW, "2020-01-01");
+		saveReportRequest(ReportRequest.Priority.HIGH, "2010-01-01");
+
+		RequestContext context = buildRequestContext("sortBy", "priority");
+		context.setStartIndex(2);
+		context.setLimit(1);
+		List<SimpleObject> results = (List<SimpleObject>) getResource().search(context).get("results");
+		assertThat(results.size(), is(1));
+		assertEquals(ReportRequest.Priority.HIGH, results.get(0).get("priority"));
+
+		context = buildRequestContext("sortBy", "requestDate");
+		context.setStartIndex(1);
+		context.setLimit(1);
+		results = (List<SimpleObject>) getResource().search(context).get("results");
+		assertEquals(ReportRequest.Priority.LOW, results.get(0).get("priority"));
+	}
+
+	@Test
+	public void testSearchIgnoresUnknownSortBy() throws Exception {
+		saveReportRequest(ReportRequest.Priority.LOW, "2020-01-01");
+		saveReportRequest(ReportRequest.Priority.HIGH, "2010-01-01");
+
+		List<SimpleObject> results = (List<SimpleObject>) getResource().search(buildRequestContext("sortBy", "color")).get("results");
+
+		// latest first, as for sortBy=requestDate
+		assertThat(results.size(), is(3));
+		assertEquals(ReportRequest.Priority.LOW, results.get(0).get("priority"));
+		assertEquals(ReportRequest.Priority.HIGH, results.get(2).get("priority"));
+	}
+
+	private void saveReportRequest(ReportRequest.Priority priority, String requestDate) {
+		ReportRequest request = new ReportRequest();
+		request.setReportDefinition(new Mapped<ReportDefinition>(reportDefinitionService.getDefinitionByUuid(REPORT_DEFINITION_UUID), new HashMap<String, Object>()));
+		request.setRenderingMode(new RenderingMode(new CsvReportRenderer(), "CSV", RENDERER_MODE_UUID, 0));
+		request.setPriority(priority);
+		request.setStatus(ReportRequest.Status.COMPLETED);
+		request.setRequestDate(LocalDate.parse(requestDate).toDate());
+		reportService.saveReportRequest(request);
+	}
+
 	protected RequestContext buildRequestContext(String... paramNamesAndValues) {
 		MockHttpServletRequest request = new MockHttpServletRequest();
 		for (int i = 0; i < paramNamesAndValues.length; i += 2) {